@@ -0,0 +1,268 @@
+import javafx.scene.Group;
+import javafx.scene.image.WritableImage;
+import javafx.scene.paint.Color;
+import javafx.scene.paint.PhongMaterial;
+import javafx.scene.shape.CullFace;
+import javafx.scene.shape.MeshView;
+import javafx.scene.shape.TriangleMesh;
+import javafx.scene.shape.VertexFormat;
+import dihedralutils.Chain;
+
+// draws the residue spheres and bond rods of a whole chain as two meshes
+// instead of a group of shapes per residue. when the chain moves the vertex
+// positions are rewritten in place, and each residue is coloured by pointing
+// its texture coordinate at a cell of a small palette texture
+public class ChainMesh extends Group {
+  public static final float NODE_RADIUS = 0.9f;
+  private static final float ROD_RADIUS = 0.15f;
+  // tessellation of each sphere and rod
+  private static final int SEGMENTS = 10;
+  private static final int RINGS = 7;
+  private static final int ROD_SIDES = 6;
+  // distinct colours the palette holds
+  private static final int PALETTE_SIZE = 16;
+
+  // unit sphere shared by every residue - its points are also its normals
+  private static final int SPHERE_POINTS = (RINGS - 1) * SEGMENTS + 2;
+  private static final float[] SPHERE = new float[3 * SPHERE_POINTS];
+  // triangles of the unit sphere as point indices
+  private static final int[] SPHERE_FACES = new int[3 * 2 * SEGMENTS * (RINGS - 1)];
+  private static final int FACES_PER_SPHERE = SPHERE_FACES.length / 3;
+
+  public final MeshView spheres = new MeshView();
+  public final MeshView rods = new MeshView();
+  private TriangleMesh sphereMesh;
+  private TriangleMesh rodMesh;
+  private float[] spherePoints;
+  private float[] rodPoints;
+  private float[] rodNormals;
+  private int length;
+
+  private final WritableImage palette = new WritableImage(PALETTE_SIZE, 1);
+  private final Color[] paletteColours = new Color[PALETTE_SIZE];
+  private int paletteSize;
+  private final float[] texCoord = new float[2];
+
+  public ChainMesh() {
+    PhongMaterial material = new PhongMaterial();
+    material.setDiffuseMap(palette);
+    spheres.setMaterial(material);
+    // rods take the default colour of a shape
+    rods.setMaterial(new PhongMaterial(Color.LIGHTGRAY));
+    // normals are supplied, so both sides of a triangle light the same and
+    // the winding of the faces does not matter
+    spheres.setCullFace(CullFace.NONE);
+    rods.setCullFace(CullFace.NONE);
+    getChildren().addAll(rods, spheres);
+    // nodes are picked from their coordinates, so the scene need not test
+    // the mouse against every triangle
+    setMouseTransparent(true);
+  }
+
+  public int getLength() {
+    return length;
+  }
+
+  // allocates meshes for a chain and places every residue
+  public void build(Chain chain) {
+    length = chain.length;
+    int bonds = Math.max(0, length - 1);
+
+    sphereMesh = new TriangleMesh(VertexFormat.POINT_NORMAL_TEXCOORD);
+    spherePoints = new float[3 * SPHERE_POINTS * length];
+    float[] texCoords = new float[2 * length];
+    int[] faces = new int[9 * FACES_PER_SPHERE * length];
+    int f = 0;
+    for (int i = 0; i < length; i++) {
+      int base = i * SPHERE_POINTS;
+      for (int k = 0; k < SPHERE_FACES.length; k++) {
+        faces[f++] = base + SPHERE_FACES[k];
+        faces[f++] = SPHERE_FACES[k];
+        faces[f++] = i;
+      }
+    }
+    sphereMesh.getNormals().setAll(SPHERE);
+    sphereMesh.getTexCoords().setAll(texCoords);
+    sphereMesh.getFaces().setAll(faces);
+
+    rodMesh = new TriangleMesh(VertexFormat.POINT_NORMAL_TEXCOORD);
+    rodPoints = new float[3 * 2 * ROD_SIDES * bonds];
+    rodNormals = new float[3 * ROD_SIDES * bonds];
+    faces = new int[9 * 2 * ROD_SIDES * bonds];
+    f = 0;
+    for (int b = 0; b < bonds; b++) {
+      int ring0 = 2 * ROD_SIDES * b;
+      int ring1 = ring0 + ROD_SIDES;
+      int normal = ROD_SIDES * b;
+      for (int s = 0; s < ROD_SIDES; s++) {
+        int t = (s + 1) % ROD_SIDES;
+        int[] side = {
+          ring0 + s, normal + s, ring1 + s, normal + s, ring1 + t, normal + t,
+          ring0 + s, normal + s, ring1 + t, normal + t, ring0 + t, normal + t
+        };
+        for (int k = 0; k < side.length; k += 2) {
+          faces[f++] = side[k];
+          faces[f++] = side[k+1];
+          faces[f++] = 0;
+        }
+      }
+    }
+    rodMesh.getTexCoords().setAll(0, 0);
+    rodMesh.getFaces().setAll(faces);
+
+    placeSpheres(chain, 0);
+    placeRods(chain, 0);
+    sphereMesh.getPoints().setAll(spherePoints);
+    rodMesh.getPoints().setAll(rodPoints);
+    rodMesh.getNormals().setAll(rodNormals);
+    spheres.setMesh(sphereMesh);
+    rods.setMesh(rodMesh);
+  }
+
+  // moves residues from start onwards to their new coordinates. the rod of
+  // the residue before start points at a moved residue so it is re-aimed too
+  public void update(Chain chain, int start) {
+    if (chain.length != length) {
+      build(chain);
+      return;
+    }
+    start = Math.max(0, start);
+    if (start >= length) return;
+    placeSpheres(chain, start);
+    int from = 3 * SPHERE_POINTS * start;
+    sphereMesh.getPoints().set(from, spherePoints, from, spherePoints.length - from);
+    int bond = Math.max(0, start - 1);
+    if (bond < length - 1) {
+      placeRods(chain, bond);
+      from = 3 * 2 * ROD_SIDES * bond;
+      rodMesh.getPoints().set(from, rodPoints, from, rodPoints.length - from);
+      from = 3 * ROD_SIDES * bond;
+      rodMesh.getNormals().set(from, rodNormals, from, rodNormals.length - from);
+    }
+  }
+
+  // colours the sphere of residue i
+  public void setColour(int i, Color colour) {
+    int cell = 0;
+    while (cell < paletteSize && !paletteColours[cell].equals(colour)) cell++;
+    if (cell == paletteSize) {
+      if (paletteSize == PALETTE_SIZE) {
+        throw new IllegalStateException("The palette holds at most " + PALETTE_SIZE + " colours");
+      }
+      paletteColours[cell] = colour;
+      palette.getPixelWriter().setColor(cell, 0, colour);
+      paletteSize++;
+    }
+    // sample the middle of the cell so filtering never blends neighbours
+    texCoord[0] = (cell + 0.5f) / PALETTE_SIZE;
+    texCoord[1] = 0.5f;
+    sphereMesh.getTexCoords().set(2 * i, texCoord, 0, 2);
+  }
+
+  private void placeSpheres(Chain chain, int start) {
+    for (int i = start; i < length; i++) {
+      float x = (float) chain.x[i];
+      float y = (float) chain.y[i];
+      float z = (float) chain.z[i];
+      int p = 3 * SPHERE_POINTS * i;
+      for (int k = 0; k < SPHERE.length; k += 3) {
+        spherePoints[p + k] = x + NODE_RADIUS * SPHERE[k];
+        spherePoints[p + k + 1] = y + NODE_RADIUS * SPHERE[k + 1];
+        spherePoints[p + k + 2] = z + NODE_RADIUS * SPHERE[k + 2];
+      }
+    }
+  }
+
+  // places a ring of points around each end of the bonds from start onwards,
+  // in the plane normal to the bond
+  private void placeRods(Chain chain, int start) {
+    for (int b = start; b < length - 1; b++) {
+      double ax = chain.x[b+1] - chain.x[b];
+      double ay = chain.y[b+1] - chain.y[b];
+      double az = chain.z[b+1] - chain.z[b];
+      double norm = Math.sqrt(ax * ax + ay * ay + az * az);
+      if (norm == 0.0) norm = 1.0;
+      ax /= norm;
+      ay /= norm;
+      az /= norm;
+      // u is normal to the bond and to whichever axis is furthest from it
+      double ux, uy, uz;
+      if (Math.abs(ax) < 0.9) {
+        ux = 0.0;
+        uy = az;
+        uz = -ay;
+      }
+      else {
+        ux = -az;
+        uy = 0.0;
+        uz = ax;
+      }
+      norm = Math.sqrt(ux * ux + uy * uy + uz * uz);
+      ux /= norm;
+      uy /= norm;
+      uz /= norm;
+      // v = a x u completes the frame
+      double vx = ay * uz - az * uy;
+      double vy = az * ux - ax * uz;
+      double vz = ax * uy - ay * ux;
+      int p = 3 * 2 * ROD_SIDES * b;
+      int n = 3 * ROD_SIDES * b;
+      for (int s = 0; s < ROD_SIDES; s++) {
+        double angle = 2 * Math.PI * s / ROD_SIDES;
+        double c = Math.cos(angle);
+        double d = Math.sin(angle);
+        float nx = (float) (c * ux + d * vx);
+        float ny = (float) (c * uy + d * vy);
+        float nz = (float) (c * uz + d * vz);
+        rodNormals[n + 3*s] = nx;
+        rodNormals[n + 3*s + 1] = ny;
+        rodNormals[n + 3*s + 2] = nz;
+        rodPoints[p + 3*s] = (float) chain.x[b] + ROD_RADIUS * nx;
+        rodPoints[p + 3*s + 1] = (float) chain.y[b] + ROD_RADIUS * ny;
+        rodPoints[p + 3*s + 2] = (float) chain.z[b] + ROD_RADIUS * nz;
+        int q = p + 3 * ROD_SIDES + 3*s;
+        rodPoints[q] = (float) chain.x[b+1] + ROD_RADIUS * nx;
+        rodPoints[q + 1] = (float) chain.y[b+1] + ROD_RADIUS * ny;
+        rodPoints[q + 2] = (float) chain.z[b+1] + ROD_RADIUS * nz;
+      }
+    }
+  }
+
+  static {
+    // poles first and last, rings of SEGMENTS points between them
+    SPHERE[1] = -1.0f;
+    SPHERE[3 * (SPHERE_POINTS - 1) + 1] = 1.0f;
+    for (int r = 1; r < RINGS; r++) {
+      double phi = Math.PI * r / RINGS;
+      for (int s = 0; s < SEGMENTS; s++) {
+        double theta = 2 * Math.PI * s / SEGMENTS;
+        int p = 3 * getSpherePoint(r, s);
+        SPHERE[p] = (float) (Math.sin(phi) * Math.cos(theta));
+        SPHERE[p + 1] = (float) -Math.cos(phi);
+        SPHERE[p + 2] = (float) (Math.sin(phi) * Math.sin(theta));
+      }
+    }
+    int f = 0;
+    int bottom = SPHERE_POINTS - 1;
+    for (int s = 0; s < SEGMENTS; s++) {
+      int t = (s + 1) % SEGMENTS;
+      f = putFace(f, 0, getSpherePoint(1, s), getSpherePoint(1, t));
+      for (int r = 1; r < RINGS - 1; r++) {
+        f = putFace(f, getSpherePoint(r, s), getSpherePoint(r+1, s), getSpherePoint(r+1, t));
+        f = putFace(f, getSpherePoint(r, s), getSpherePoint(r+1, t), getSpherePoint(r, t));
+      }
+      f = putFace(f, bottom, getSpherePoint(RINGS-1, t), getSpherePoint(RINGS-1, s));
+    }
+  }
+
+  private static int getSpherePoint(int ring, int segment) {
+    return 1 + (ring - 1) * SEGMENTS + segment;
+  }
+
+  private static int putFace(int f, int a, int b, int c) {
+    SPHERE_FACES[f] = a;
+    SPHERE_FACES[f + 1] = b;
+    SPHERE_FACES[f + 2] = c;
+    return f + 3;
+  }
+}
@@ -0,0 +1,95 @@
+import javafx.scene.image.*;
+import contactutils.RestraintSet;
+import java.util.Arrays;
+
+// draws the contact map into one image instead of a node per cell. the grey
+// background, black diagonal and green expected contacts in the upper
+// triangle are fixed for a puzzle, so an update only rewrites the lower
+// triangle pixels of restraints whose colour actually changed
+public class ContactMapImage extends ImageView {
+  // colours in argb
+  private static final int WHITE = 0xffffffff;
+  private static final int GREY = 0xff808080;
+  private static final int BLACK = 0xff000000;
+  private static final int GREEN = 0xff00ff00;
+  // largest image drawn - longer chains share pixels between residues
+  private static final int MAX_RES = 960;
+
+  private WritableImage image;
+  private PixelWriter writer;
+  private RestraintSet restraints;
+  // number of residues and pixels per side
+  private int side;
+  private int res;
+  // colour last drawn for each restraint, 0 if not yet drawn
+  private int[] colours;
+
+  public ContactMapImage() {
+    super();
+    setSmooth(false);
+    setPreserveRatio(true);
+  }
+
+  // blank map shown before a puzzle is opened
+  public void clear(double size) {
+    restraints = null;
+    image = new WritableImage(1, 1);
+    image.getPixelWriter().setArgb(0, 0, WHITE);
+    setImage(image);
+    setFitWidth(size);
+    setFitHeight(size);
+  }
+
+  // draws the fixed parts of the map for a new set of restraints
+  public void load(RestraintSet restraints, double size) {
+    this.restraints = restraints;
+    side = restraints.residues;
+    res = Math.max(1, Math.min(side, MAX_RES));
+    int[] buffer = new int[res * res];
+    Arrays.fill(buffer, GREY);
+    for (int p = 0; p < res; p++) {
+      buffer[p * res + p] = BLACK;
+    }
+    for (int k = 0; k < restraints.size; k++) {
+      if (isOnDiagonal(k)) continue;
+      buffer[pixel(restraints.i[k]) * res + pixel(restraints.j[k])] = GREEN;
+    }
+    image = new WritableImage(res, res);
+    writer = image.getPixelWriter();
+    writer.setPixels(0, 0, res, res, PixelFormat.getIntArgbInstance(), buffer, 0, res);
+    colours = new int[restraints.size];
+    setImage(image);
+    setFitWidth(size);
+    setFitHeight(size);
+  }
+
+  // recolours the lower triangle given the current distance of every restraint
+  public void update(RestraintSet restraints, double[] distance) {
+    if (this.restraints == null || restraints != this.restraints) return;
+    for (int k = 0; k < restraints.size; k++) {
+      int c = getColour(restraints.dist[k], distance[k]);
+      if (c == colours[k] || isOnDiagonal(k)) continue;
+      colours[k] = c;
+      writer.setArgb(pixel(restraints.i[k]), pixel(restraints.j[k]), c);
+    }
+  }
+
+  // red when far from the expected distance, yellow to green as it closes in
+  public static int getColour(double expected, double actual) {
+    double err = Math.min( (expected / actual), (actual / expected));
+    int g = (int) (510 * err);
+    int r = Math.min(Math.abs(510 - g), 254);
+    g = Math.min(g, 254);
+    return 0xff000000 | (r << 16) | (g << 8);
+  }
+
+  // above MAX_RES residues nearby residues share a pixel, and a restraint
+  // between two of them would draw over the diagonal
+  private boolean isOnDiagonal(int k) {
+    return pixel(restraints.i[k]) == pixel(restraints.j[k]);
+  }
+
+  private int pixel(int residue) {
+    return (int) ((long) residue * res / side);
+  }
+}
@@ -1,5 +1,6 @@
  public void setCameraZoom() {
-    if (links == null) return;
+    if (chain == null) return;
+    profiler.begin(StageProfiler.CAMERA);
     // cam field of view is 30 degrees - pi / 6
     double tanTheta = Math.tan(Math.PI / 6.0);
     // keep track of max zoom level needed to see all nodes
@@ -12,11 +13,11 @@
     maxDown = INF;
 
     // finds max left, max right, max up, and max down for calculate camera field of view
-    for (Link l : links) {
-      // get position of sphere
+    for (int i = 0; i < chain.length; i++) {
+      // get position of node
       double x, y, xZoom, yZoom;
-      x = l.getTranslateX();
-      y = l.getTranslateY();
+      x = chain.x[i];
+      y = chain.y[i];
       maxLeft = Math.min(maxLeft, x);
       maxRight = Math.max(maxRight, x);
       maxUp = Math.max(maxUp, y);
@@ -29,20 +30,7 @@
     cam.setTranslateX((maxLeft + maxRight) / 2.0);
     cam.setTranslateY((maxUp + maxDown) / 2.0);
     cam.setTranslateZ(maxZoom);
-  }
-
-  // maps a secondary structure character to its theta angles
-  HashMap<Character, Integer> secondaryTheta = new HashMap<Character, Integer>();
-  // maps a secondary structure character to its tao angle
-  HashMap<Character, Integer> secondaryTao = new HashMap<Character, Integer>();
-  // initialize maps for secondary structure to angle
-  public void initSecondaryMaps() {
-    secondaryTheta.put('H', 89);
-    secondaryTheta.put('E', 124);
-    secondaryTheta.put('C', 110);
-    secondaryTao.put('H', 50);
-    secondaryTao.put('E', -170);
-    secondaryTao.put('C', -150);
+    profiler.end(StageProfiler.CAMERA);
   }
 
   // maps shorthand characters to full strings for amino acids and secondary structures
@@ -102,145 +90,147 @@
     shorthandSS.put('C', "Coil");
   }
 
-  // helper function for building links - gets all angles for .aa file
-  public void setAngularArray(String content) {
-    if (content == null) {
-      // aminoAcidError();
-      return;
-    }
-    int n = content.length();
-    angles = new Angular[n];
-    for (int i = 0; i < n; i++) {
-      Angular a = new Angular();
-      a.id = i;
-      a.aa = content.charAt(i);
-      // first and last node have no theta
-      if (i == 0 || i == n-1) {
-        a.theta = 2 * Math.PI;
-      }
-      else {
-        a.theta = 110.0 * Math.PI / 180.0;
-      }
-      // first, second to last, and last nodes have no tao
-      if (i == 0 || i == n-1 || i == n-2) {
-        a.tao = 2 * Math.PI;
-      }
-      else {
-        a.tao = -150.0 * Math.PI / 180.0;
-      }
-      angles[i] = a;
+  // angles and coordinates of every node, stored as primitive arrays
+  Chain chain;
+  // spheres and rods of the whole chain, drawn as two meshes
+  private final ChainMesh chainMesh = new ChainMesh();
+  // finds the node under the mouse - refit to the chain on the first pick
+  // after it moves
+  private final RayPicker picker = new RayPicker();
+  private boolean isPickerStale = true;
+
+  public void setLinkArray() {
+    chainMesh.build(chain);
+    isPickerStale = true;
+    // clashes are marked again by the next edit
+    isClashMarked = new boolean[chain.length];
+    for (int i = 0; i < chain.length; i++) {
+      paint(i);
     }
   }
 
-  public void structureAngularArray(String content) {
-    if (content == null || content.length() != links.length) return;
-    int n = links.length;
-    for (int i = 0; i < angles.length; i++) {
-      char c = content.charAt(i);
-      angles[i].ss = c;
-      if (i != 0 && i != n-1) {
-        angles[i].theta = Math.toRadians(secondaryTheta.get(c));
-        if (i != n-2) {
-          angles[i].tao = Math.toRadians(secondaryTao.get(c));
-        }
-      }
+  // colours node i - the selection shows over clashes, and clashes over the
+  // secondary structure
+  private void paint(int i) {
+    PhongMaterial m;
+    if (i == selected) m = green;
+    else if (isClashMarked != null && i < isClashMarked.length && isClashMarked[i]) m = clashMaterial;
+    else m = getLinkMaterial(i);
+    // nodes without a material keep the default colour of a shape
+    chainMesh.setColour(i, m == null ? Color.LIGHTGRAY : m.getDiffuseColor());
+  }
+
+  // material of an unselected node based on its secondary structure
+  public PhongMaterial getLinkMaterial(int i) {
+    if (secondaryString == null) return red;
+    switch (secondaryString.charAt(i)) {
+      case 'H':
+        return red;
+      case 'E':
+        return yellow;
+      case 'C':
+        return blue;
     }
+    return null;
   }
 
-  public void setLinkArray() {
-    int n = carts.length;
-    links = new Link[n];
-    boolean isEndNode = false;
-    for (int i = 0; i < n; i++) {
-      Cartesian c = carts[i];
-      if (i == carts.length-1) isEndNode = true;
-      Link l = new Link(c.ca.x, c.ca.y, c.ca.z, isEndNode);
-      l.id = i;
-      l.aa = angles[i].aa;
-      // null character
-      if (angles[i].ss != 0) {
-        l.ss = angles[i].ss;
-      }
-      if (secondaryString == null) {
-        l.node.setMaterial(red);
-      }
-      else {
-        switch (secondaryString.charAt(i)) {
-          case 'H':
-            l.node.setMaterial(red);
-            break;
-          case 'E':
-            l.node.setMaterial(yellow);
-            break;
-          case 'C':
-            l.node.setMaterial(blue);
-            break;
-        }
+  // clash checks run on every edit so the grid is kept between them
+  private ClashGrid clashGrid = new ClashGrid();
+  private final PhongMaterial clashMaterial = new PhongMaterial(Color.MAGENTA);
+  // nodes currently drawn with the clash material
+  private boolean[] isClashMarked;
+
+  // draws every node that overlaps another in the clash material so a move
+  // that will be rejected on release is visible while still dragging
+  public void markClashes() {
+    if (isClashMarked == null || isClashMarked.length != chain.length) {
+      isClashMarked = new boolean[chain.length];
+    }
+    for (int i = 0; i < chain.length; i++) {
+      if (isClashMarked[i]) {
+        isClashMarked[i] = false;
+        paint(i);
       }
-      links[i] = l;
+    }
+    int n = clashGrid.findClashes(chain);
+    for (int k = 0; k < n; k++) {
+      isClashMarked[clashGrid.clashI[k]] = true;
+      isClashMarked[clashGrid.clashJ[k]] = true;
+    }
+    for (int i = 0; i < chain.length; i++) {
+      if (isClashMarked[i]) paint(i);
     }
   }
 
-  public void connectLinkRods() {
-    for (int i = 0; i < links.length-1; i++) {
-      links[i].rotateRod(links[i+1]);
-    }
+  // moves the nodes from start onwards to their new coordinates by rewriting
+  // the mesh vertices in place instead of rebuilding anything
+  public void updateLinkArray(int start) {
+    chainMesh.update(chain, start);
+    isPickerStale = true;
   }
 
-  // helper function for building the sequence
-  public Link[] buildLinks(String content) {
-    setAngularArray(content);
-    // convert to cartesion points
-    carts = DihedralUtility.angles2Carts(angles);
+  // helper function for building the sequence - the starting angles for
+  // the puzzle's secondary structure come from the puzzle
+  public void buildLinks(Puzzle puzzle) {
+    chain = puzzle.initialChain();
+    // restraints of a previous puzzle no longer apply
+    scorer = null;
     setLinkArray();
-    connectLinkRods();
-    return links;
   }
 
-  public Link[] buildLinks(int selectionIndex) {
-    carts = DihedralUtility.angles2Carts(angles);
-    setLinkArray();
-    connectLinkRods();
+  public void buildLinks(int selectionIndex) {
+    int start = 0;
+    profiler.setContext(chain.length, selectionIndex);
+    profiler.begin(StageProfiler.GEOMETRY);
+    if (selectionIndex == -1) {
+      chain.anglesToCarts();
+    }
+    else {
+      // only nodes after the edited one can move - reuse the cached prefix
+      start = DihedralUtility.firstAffected(selectionIndex);
+      chain.recomputeFrom(start);
+    }
+    profiler.end(StageProfiler.GEOMETRY);
+    profiler.begin(StageProfiler.MESH);
+    if (chainMesh.getLength() != chain.length) {
+      setLinkArray();
+    }
+    else {
+      updateLinkArray(start);
+    }
     if (selectionIndex != -1) {
-      selectedNode = links[selectionIndex].node;
-      selectedNode.setMaterial(green);
+      highlight(selectionIndex);
     }
-    return links;
+    profiler.end(StageProfiler.MESH);
+    profiler.begin(StageProfiler.CLASHES);
+    markClashes();
+    profiler.end(StageProfiler.CLASHES);
+    profiler.begin(StageProfiler.SCORE);
+    updateScorer(start);
+    profiler.end(StageProfiler.SCORE);
   }
 
   private String secondaryString;
 
-  public Link[] structureLinks(String content) {
-    secondaryString = content;
-    structureAngularArray(content);
-    carts = DihedralUtility.angles2Carts(angles);
-    setLinkArray();
-    connectLinkRods();
-    return links;
-  }
-
   public void buildSequence() {
-    sequence.getChildren().clear();
-    world.getChildren().clear();
-    sequence.setRotationAxis(Rotate.Y_AXIS);
-    sequence.getChildren().addAll(links);
-    world.getChildren().add(sequence);
+    profiler.begin(StageProfiler.SCENE);
+    // the meshes are rebuilt and edited in place, so the scene graph only
+    // needs populating the first time
+    if (chainMesh.getParent() != sequence) {
+      sequence.getChildren().clear();
+      world.getChildren().clear();
+      sequence.setRotationAxis(Rotate.Y_AXIS);
+      sequence.getChildren().add(chainMesh);
+      world.getChildren().add(sequence);
+    }
     if (isAutoZoom) setCameraZoom();
+    profiler.end(StageProfiler.SCENE);
   }
 
   // add all the links
-  public void initSequence(File f) throws IOException {
-    String content = new Scanner(f).useDelimiter("\n").next();
-    content.trim();
-    links = buildLinks(content);
-    buildSequence();
-    setCameraZoom();
-  }
-
-  public void applySecondaryStructure(File f) throws IOException {
-    String content = new Scanner(f).useDelimiter("\n").next();
-    content.trim();
-    links = structureLinks(content);
+  public void initSequence(Puzzle puzzle) {
+    pacer.flush();
+    buildLinks(puzzle);
     buildSequence();
     setCameraZoom();
   }
@@ -280,15 +270,14 @@
   }
 
   // updates a slider with the angle info of a give node
-  public void updateSliders(Link l) {
-    int id = l.id;
-    double theta = angles[id].theta;
-    double tao = angles[id].tao;
-    if (id == 0 || id == angles.length-1) {
+  public void updateSliders(int id) {
+    double theta = chain.theta[id];
+    double tao = chain.tao[id];
+    if (id == 0 || id == chain.length-1) {
       resetSliders();
       return;
     }
-    if (id == angles.length-2) {
+    if (id == chain.length-2) {
       thetaSlider.setDisable(false);
       thetaSlider.setValue(theta);
       return;
@@ -320,26 +309,37 @@
   double mouseDeltaX;
   double mouseDeltaY;
 
-  // node selection fields
-  Sphere selectedNode;
-  PhongMaterial selectedMaterial;
-
-  private void select(Sphere s) {
-    if (s == null) return;
-    deselect(selectedNode);
-    selectedNode = s;
-    selectedMaterial = (PhongMaterial) s.getMaterial();
-    s.setMaterial(green);
-    Link l = (Link) s.getParent();
-    updateSliders(l);
-    updateLinkLabels(l);
-  }
-
-  private void deselect(Sphere s) {
-    if (s == null) return;
-    s.setMaterial(selectedMaterial);
-    selectedNode = null;
-    selectedMaterial = null;
+  // index of the selected node, -1 for none
+  int selected = -1;
+
+  private void select(int index) {
+    if (index < 0 || index >= chain.length) return;
+    // apply edits to the old selection before the sliders move to the new one
+    pacer.flush();
+    deselect();
+    selected = index;
+    paint(index);
+    isSettingSliders = true;
+    updateSliders(index);
+    isSettingSliders = false;
+    updateLinkLabels(index);
+  }
+
+  // moves the selection highlight to the node at index without touching the
+  // sliders - the old selection is repainted in its own colour
+  private void highlight(int index) {
+    if (index == selected) return;
+    int old = selected;
+    selected = index;
+    if (old != -1 && old < chainMesh.getLength()) paint(old);
+    paint(index);
+  }
+
+  private void deselect() {
+    if (selected == -1) return;
+    int old = selected;
+    selected = -1;
+    if (old < chainMesh.getLength()) paint(old);
     resetSliders();
     resetLinkLabels();
   }
@@ -348,11 +348,12 @@
   @FXML private Text aaLabel;
   @FXML private Text ssLabel;
 
-  public void updateLinkLabels(Link l) {
-    idLabel.setText("Residue ID: " + (l.id + 1));
-    aaLabel.setText("Amino Acid: " + shorthandAA.get(l.aa));
-    if (l.ss != 0) {
-      ssLabel.setText("Secondary Structure: " + shorthandSS.get(l.ss));
+  public void updateLinkLabels(int id) {
+    idLabel.setText("Residue ID: " + (id + 1));
+    aaLabel.setText("Amino Acid: " + shorthandAA.get(chain.aa[id]));
+    // null character
+    if (chain.ss[id] != 0) {
+      ssLabel.setText("Secondary Structure: " + shorthandSS.get(chain.ss[id]));
     }
   }
 
@@ -362,6 +363,33 @@
     ssLabel.setText("Secondary Structure: ");
   }
 
+  // casts the ray from the camera through the mouse against the node
+  // coordinates and returns the first node it hits, or -1
+  private int pickNode(SubScene scene, MouseEvent e) {
+    if (chain == null || !(scene.getCamera() instanceof PerspectiveCamera)) return -1;
+    PerspectiveCamera camera = (PerspectiveCamera) scene.getCamera();
+    double w = scene.getWidth();
+    double h = scene.getHeight();
+    // distance in pixels from the eye to the plane the view is projected on
+    double half = camera.isVerticalFieldOfView() ? h / 2.0 : w / 2.0;
+    double depth = half / Math.tan(Math.toRadians(camera.getFieldOfView() / 2.0));
+    Point3D eye = camera.isFixedEyeAtCameraZero() ? Point3D.ZERO : new Point3D(w / 2.0, h / 2.0, -depth);
+    Point3D toward = eye.add(e.getX() - w / 2.0, e.getY() - h / 2.0, depth);
+    // the chain turns with the sequence, so the ray is taken into its space
+    Point3D o = chainMesh.sceneToLocal(camera.localToScene(eye));
+    Point3D t = chainMesh.sceneToLocal(camera.localToScene(toward));
+    if (o == null || t == null) return -1;
+    if (picker.getLength() != chain.length) {
+      picker.build(chain, ChainMesh.NODE_RADIUS);
+    }
+    else if (isPickerStale) {
+      picker.refit(chain);
+    }
+    isPickerStale = false;
+    return picker.pick(chain, o.getX(), o.getY(), o.getZ(),
+      t.getX() - o.getX(), t.getY() - o.getY(), t.getZ() - o.getZ());
+  }
+
   private void handle3DMouse(SubScene scene, final Node root) {
     scene.setOnMousePressed(new EventHandler<MouseEvent> () {
       @Override
@@ -371,12 +399,13 @@
         mouseYf = e.getSceneY();
         if (e.isPrimaryButtonDown()) {
           // update selection
-          PickResult result = e.getPickResult();
-          if (result.getIntersectedNode() instanceof Sphere) {
-            select((Sphere) result.getIntersectedNode());
+          int index = pickNode(scene, e);
+          record(InputTrace.SELECT, index, 0.0, null);
+          if (index != -1) {
+            select(index);
           }
           else {
-            deselect(selectedNode);
+            deselect();
           }
         }
       }
@@ -432,65 +461,91 @@
   @FXML private Text planarAngle; 
   @FXML private Text dihedralAngle;
 
+  // times every stage of the rebuild for flight recordings and the overlay
+  private final StageProfiler profiler = new StageProfiler();
+  private final PerformanceOverlay overlay = new PerformanceOverlay(profiler);
+
+  // slider listeners only store the new angle - the chain is rebuilt once per frame
+  private FramePacer pacer = new FramePacer(index -> {
+    profiler.setContext(chain.length, index);
+    invalidateScore();
+    profiler.begin(StageProfiler.FRAME);
+    buildLinks(index);
+    buildSequence();
+    showScore();
+    profiler.end(StageProfiler.FRAME);
+  });
+
+  @FXML
+  private void togglePerformanceOverlay(ActionEvent e) {
+    overlay.show(((CheckMenuItem) e.getSource()).isSelected());
+  }
+
   public void handleSliders() {
     // track slider value for theta
     DecimalFormat df = new DecimalFormat("0.0");
     thetaSlider.valueProperty().addListener((observable, oldVal, newVal) -> {
-      if (selectedNode != null) {
-        Link selectedLink = (Link) selectedNode.getParent();
-        int index = selectedLink.id;
+      if (selected != -1) {
+        int index = selected;
         double start, end;
         start = oldVal.doubleValue();
         end = newVal.doubleValue();
-        if (index != 0 && index != angles.length-1) {
-          angles[index].theta = end;
+        if (index != 0 && index != chain.length-1) {
           planarAngle.setText(df.format(thetaSlider.getValue() * 180/Math.PI) + "\u00b0");
-          links = buildLinks(index);
-          buildSequence();
+          // showing a node is not an edit of it
+          if (isSettingSliders) return;
+          record(InputTrace.THETA, index, end, null);
+          chain.theta[index] = end;
+          pacer.request(index);
         }
       }
     });
 
-    // track undo for theta slider
-    thetaSlider.setOnMousePressed((MouseEvent e) -> {
-      Link selectedLink = (Link) selectedNode.getParent();
-      int id = selectedLink.id;
-      history.offerLast(new Undo(id, 'p', thetaSlider.getValue()));
-      redoStack.clear();
-    });
-
-    thetaSlider.setOnMouseReleased((MouseEvent e) -> {
-      updateScore();
-    });
+    // a whole drag of the theta slider is one move in the undo history
+    thetaSlider.setOnMousePressed((MouseEvent e) -> beginDrag('p'));
+    thetaSlider.setOnMouseReleased((MouseEvent e) -> endDrag());
 
     // track slider change
     taoSlider.valueProperty().addListener((observable, oldVal, newVal) -> {
-      if (selectedNode != null) {
-        Link head = (Link) selectedNode.getParent();
-        int index = head.id;
+      if (selected != -1) {
+        int index = selected;
         double start, end;
         start = oldVal.doubleValue();
         end = newVal.doubleValue();
-        if (index != 0 && index != angles.length-2 && index != angles.length-1) {
-          angles[index].tao = end;
+        if (index != 0 && index != chain.length-2 && index != chain.length-1) {
           dihedralAngle.setText(df.format(taoSlider.getValue() * 180/Math.PI) + "\u00b0");
-          links =  buildLinks(index);
-          buildSequence();
+          if (isSettingSliders) return;
+          record(InputTrace.TAO, index, end, null);
+          chain.tao[index] = end;
+          pacer.request(index);
         }
       }
     });
 
-    // track undo for tao slider
-    taoSlider.setOnMousePressed((MouseEvent e) -> {
-      Link selectedLink = (Link) selectedNode.getParent();
-      int id = selectedLink.id;
-      history.offerLast(new Undo(id, 'd', taoSlider.getValue()));
-      redoStack.clear();
-    });
+    // a whole drag of the tao slider is one move in the undo history
+    taoSlider.setOnMousePressed((MouseEvent e) -> beginDrag('d'));
+    taoSlider.setOnMouseReleased((MouseEvent e) -> endDrag());
+  }
 
-    taoSlider.setOnMouseReleased((MouseEvent e) -> {
-      updateScore();
-    });
+  // starts a drag of the planar ('p') or dihedral ('d') slider
+  private void beginDrag(char angleType) {
+    if (selected == -1) return;
+    // a search stopped by the drag records its fold ahead of the drag
+    stopAutoFold();
+    record(angleType == 'p' ? InputTrace.PRESS_THETA : InputTrace.PRESS_TAO, selected, 0.0, null);
+    invalidateScore();
+    history.beginDrag(selected, angleType, (angleType == 'p' ? chain.theta : chain.tao)[selected]);
+  }
+
+  private void endDrag() {
+    record(InputTrace.RELEASE, -1, 0.0, null);
+    pacer.flush();
+    history.endDrag(chain);
+    // resync from scratch so rounding from incremental updates never builds up
+    if (scorer != null && chain != null && scorer.restraints.residues == chain.length) {
+      scorer.reset(chain);
+    }
+    updateScore();
   }
 
   @FXML
@@ -512,242 +567,608 @@
     fileModal.setTitle("Open Resource File");
     fileModal.getExtensionFilters().addAll(
       new ExtensionFilter("ZIP Archive \".zip\"", "*.zip"),
+      new ExtensionFilter("PolyFold Session \".pfs\"", "*.pfs"),
       new ExtensionFilter("Protein Data Bank \".pdb\"", "*.pdb")
     );
     File f = fileModal.showOpenDialog(app.getScene().getWindow());
-    LinkedList<String> filesInZip = new LinkedList<String>();
-    if (f != null) {
-      String[] fileTypeFrequency = new String[3];
-      // 0 = .aa | 1 = .rr | 2 = .ss
-      String extension = getExtension(f);
-      if (extension.equals(".zip")) {
-        filesInZip = unZip(f.getCanonicalPath());
-        String aa = null;
-        for (String currentFile: filesInZip) {
-          if (currentFile.substring(currentFile.length() - 3, currentFile.length()).equals(".aa")) {
-            if (aa == null) {
-              aa = currentFile;
-            }
-            else {
-            //if there is already an aa found
-              aa = null;
-              System.out.println("ERROR: There is more than one .aa file");
-            }
-          }
+    if (f != null) open(f);
+  }
+
+  // opens a puzzle bundle, session or structure by its extension
+  public void open(File f) {
+    stopAutoFold();
+    record(InputTrace.OPEN, -1, 0.0, f.getAbsolutePath());
+    String extension = getExtension(f);
+    if (".pfs".equals(extension)) {
+      openSession(f);
+      return;
+    }
+    if (".pdb".equals(extension)) {
+      openPDB(f);
+      return;
+    }
+    if (!".zip".equals(extension)) return;
+    // the bundle is read straight from the archive - nothing is extracted
+    Puzzle puzzle;
+    try {
+      puzzle = Puzzle.readZip(f);
+    }
+    catch (IOException ex) {
+      System.out.println("ERROR: " + ex.getMessage());
+      return;
+    }
+    loadPuzzle(puzzle, f.getAbsolutePath());
+  }
+
+  // starts a new game of the puzzle read from path
+  public void loadPuzzle(Puzzle puzzle, String path) {
+    stopAutoFold();
+    // a secondary structure that does not cover the sequence is ignored
+    boolean hasSecondary = puzzle.secondary != null && puzzle.secondary.length() == puzzle.sequence.length();
+    secondaryString = hasSecondary ? puzzle.secondary : null;
+    initSequence(puzzle);
+    PolyFold.setPrimaryStageTitle("PolyFold (Alpha Version) " + puzzle.name);
+    deselect();
+    // moves of the previous puzzle do not apply to this one
+    history.clear();
+    session = new SessionFile();
+    session.name = puzzle.name;
+    session.puzzlePath = path;
+    session.sequence = puzzle.sequence;
+    session.secondary = puzzle.secondary;
+    sessionFile = null;
+    if (puzzle.restraints != null) {
+      session.restraintCount = puzzle.restraints.size;
+      session.restraintTotal = puzzle.restraints.total;
+      contactMapLoaded = true;
+      generateContactMap(puzzle.restraints);
+      updateScore();
+    }
+    else {
+      // the restraints, worker and map of the previous puzzle do not apply
+      contactMapLoaded = false;
+      if (scoreWorker != null) scoreWorker.shutdown();
+      scoreWorker = null;
+      restraints = null;
+      generateContactMap(null);
+    }
+  }
+
+  // loads the CA trace of the first model in a .pdb file. a trace as long as
+  // the open puzzle is taken as a fold of it, otherwise a new puzzle without
+  // restraints is started from the structure
+  public void openPDB(File f) {
+    Chain trace;
+    try {
+      trace = PdbReader.readCA(f);
+    }
+    catch (IOException ex) {
+      System.out.println("ERROR: " + ex.getMessage());
+      return;
+    }
+    if (trace.length < 3) {
+      System.out.println("ERROR: There are fewer than 3 CA atoms in " + f.getName());
+      return;
+    }
+    stopAutoFold();
+    if (chain == null || chain.length != trace.length) {
+      Puzzle puzzle = new Puzzle();
+      String name = f.getName();
+      puzzle.name = name.substring(0, name.length() - 4);
+      puzzle.sequence = new String(trace.aa);
+      loadPuzzle(puzzle, null);
+    }
+    deselect();
+    // the undo history holds single angle moves, which do not lead back here
+    history.clear();
+    System.arraycopy(trace.theta, 0, chain.theta, 0, chain.length);
+    System.arraycopy(trace.tao, 0, chain.tao, 0, chain.length);
+    buildLinks(-1);
+    buildSequence();
+    setCameraZoom();
+    showScore();
+    updateScore();
+  }
+
+  // session being played and the file it autosaves to once saved
+  private SessionFile session;
+  private File sessionFile;
+
+  // resumes a saved session - its restraints are read again from the puzzle
+  // bundle it was started from
+  public void openSession(File f) {
+    SessionFile s;
+    try {
+      s = SessionFile.read(f);
+    }
+    catch (IOException ex) {
+      System.out.println("ERROR: " + ex.getMessage());
+      return;
+    }
+    Puzzle puzzle = new Puzzle();
+    puzzle.name = s.name;
+    puzzle.sequence = s.sequence;
+    puzzle.secondary = s.secondary;
+    if (s.puzzlePath != null && s.restraintCount > 0) {
+      try {
+        RestraintSet r = Puzzle.readZip(new File(s.puzzlePath)).restraints;
+        if (r != null && r.size == s.restraintCount && r.total == s.restraintTotal) {
+          puzzle.restraints = r;
         }
-        if (aa != null) {
-        //if there was one .aa file found
-          //set aa
-          secondaryString = null;
-          File fileAdding = new File(aa);
-          initSequence(fileAdding);
-          PolyFold.setPrimaryStageTitle("PolyFold (Alpha Version) " + fileAdding.getName().substring(0, fileAdding.getName().length()-3));
-          if (selectedNode != null) {
-            deselect(selectedNode);
-          }
-          for (String currentFile: filesInZip) {
-          //look for matching .ss and .rr
-            if (currentFile.substring(0, currentFile.length() - 3).equals(currentFile.substring(0, currentFile.length() - 3))) {
-              if (currentFile.substring(currentFile.length() - 3, currentFile.length()).equals(".ss")) {
-                //set .ss
-                File ssAdding = new File(currentFile);
-                applySecondaryStructure(ssAdding);
-                if (selectedNode != null) {
-                  deselect(selectedNode);
-                }
-              }
-              if (currentFile.substring(currentFile.length() - 3, currentFile.length()).equals(".rr")) {
-                //set .rr
-                contactMapLoaded = true;
-                File rrAdding = new File(currentFile);
-                generateContactMap(rrAdding);
-                updateScore();
-              }
-            }
-          }
+        else {
+          System.out.println("ERROR: The restraints in " + s.puzzlePath + " changed since the session was saved");
         }
       }
+      catch (IOException ex) {
+        System.out.println("ERROR: " + ex.getMessage());
+      }
     }
+    loadPuzzle(puzzle, s.puzzlePath);
+    System.arraycopy(s.theta, 0, chain.theta, 0, chain.length);
+    System.arraycopy(s.tao, 0, chain.tao, 0, chain.length);
+    buildLinks(-1);
+    buildSequence();
+    setCameraZoom();
+    history.load(s);
+    session = s;
+    sessionFile = f;
+    showScore();
+    updateScore();
   }
 
-  public LinkedList<String> unZip(String zipFile){
-    LinkedList<String> filesExtracted = new LinkedList<String>();
-    byte[] buffer = new byte[1024];
-    String outputFolder = zipFile.substring(0, zipFile.length()-4);
-    try { 
-      //create output directory is not exists
-      File folder = new File(outputFolder);
-      if (!folder.exists()) {
-        folder.mkdir();
-      }
-      //get the zip file content
-      ZipInputStream zis = new ZipInputStream(new FileInputStream(zipFile));
-      //get the zipped file list entry
-      ZipEntry ze = zis.getNextEntry();
-      while (ze != null) {
-        if (!ze.getName().matches("[-_. A-Za-z0-9]+\\.(aa|ss|rr)")) {
-            ze = zis.getNextEntry();
-            continue;
-        }  
-        String fileName = ze.getName();
-        File newFile = new File(outputFolder + File.separator + fileName);
-        filesExtracted.offer(newFile.getCanonicalPath()); 
-        //create all non exists folders
-        new File(newFile.getParent()).mkdirs();  
-        FileOutputStream fos = new FileOutputStream(newFile);             
-        int len;
-        while ((len = zis.read(buffer)) > 0) {
-          fos.write(buffer, 0, len);
-        }
-        fos.close();   
-        ze = zis.getNextEntry();
-      }
-      zis.closeEntry();
-      zis.close();
-    } 
+  @FXML
+  public void saveSession(ActionEvent e) {
+    if (chain == null) return;
+    FileChooser fileModal = new FileChooser();
+    fileModal.setTitle("Save Session...");
+    fileModal.getExtensionFilters().add(
+      new ExtensionFilter("PolyFold Session \".pfs\"", "*.pfs")
+    );
+    File f = fileModal.showSaveDialog(app.getScene().getWindow());
+    if (f != null) {
+      writeSession(f);
+    }
+  }
+
+  public void writeSession(File f) {
+    pacer.flush();
+    fillSession();
+    try {
+      session.write(f);
+      sessionFile = f;
+    }
     catch (IOException ex) {
-       ex.printStackTrace(); 
-    } 
-    finally {
-      return filesExtracted;
+      System.out.println("ERROR: " + ex.getMessage());
     }
-   }    
+  }
+
+  // copies the angles and the undo and redo history into the session
+  private void fillSession() {
+    session.theta = chain.theta;
+    session.tao = chain.tao;
+    history.fill(session);
+  }
 
+  // once saved, a session is written back after every move - only the
+  // changed angles and the history are rewritten
+  private void autosaveSession() {
+    // a replay must not overwrite the session it was recorded against
+    if (isReplaying) return;
+    if (sessionFile != null) writeSession(sessionFile);
+  }
 
-  // undo redo fields - implements Queue interface but using as stack
-  LinkedList<Undo> history = new LinkedList<Undo>();
-  LinkedList<Undo> redoStack = new LinkedList<Undo>();
+  // moves that can be undone and redone, the latest few thousand kept
+  private final MoveHistory history = new MoveHistory();
+  // set while sliders are moved to show a node, so their listeners do not
+  // take it as an edit
+  private boolean isSettingSliders;
 
   @FXML
   public void undo() {
-    Undo u = history.pollLast();
+    stopAutoFold();
+    record(InputTrace.UNDO, -1, 0.0, null);
+    undoMove();
+  }
+
+  private void undoMove() {
+    stopAutoFold();
+    pacer.flush();
+    int k = history.undo();
     // no values left in undo history - deselect everything
-    if (u == null) {
-      if (selectedNode != null) {
-        selectedNode.setMaterial(red);
-        selectedNode = null;
-      }
+    if (k == -1) {
+      deselect();
+      return;
+    }
+    if (!history.isJoined(k)) {
+      applyMove(history.getNode(k), history.getType(k), history.getBefore(k));
+      updateScore();
       return;
     }
-    System.out.println("un");
-    System.out.println(u);
-    if (u.angleType == 'p') {
-      redoStack.offerLast(new Undo(u.id, 'p', thetaSlider.getValue()));
-      angles[u.id].theta = u.angle;
-      links = buildLinks(u.id);
-      buildSequence();
-      thetaSlider.setValue(u.angle);
-      selectedNode = links[u.id].node;
-      selectedNode.setMaterial(green);
+    // a whole fold put in place at once is taken back at once
+    setAngle(history.getNode(k), history.getType(k), history.getBefore(k));
+    while (history.isJoined(k)) {
+      k = history.undo();
+      if (k == -1) break;
+      setAngle(history.getNode(k), history.getType(k), history.getBefore(k));
     }
-    else {
-      redoStack.offerLast(new Undo(u.id, 'd', thetaSlider.getValue()));
-      angles[u.id].tao = u.angle;
-      links = buildLinks(u.id);
-      buildSequence();
-      taoSlider.setValue(u.angle);
-      selectedNode = links[u.id].node;
-      selectedNode.setMaterial(green);
+    showFold();
+    updateScore();
+  }
+
+  public void redo() {
+    stopAutoFold();
+    record(InputTrace.REDO, -1, 0.0, null);
+    pacer.flush();
+    int k = history.redo();
+    if (k == -1) return;
+    if (!history.isRedoJoined()) {
+      applyMove(history.getNode(k), history.getType(k), history.getAfter(k));
+      updateScore();
+      return;
     }
+    setAngle(history.getNode(k), history.getType(k), history.getAfter(k));
+    while (history.isRedoJoined()) {
+      k = history.redo();
+      setAngle(history.getNode(k), history.getType(k), history.getAfter(k));
+    }
+    showFold();
     updateScore();
   }
 
-  // CURRENTLY KINDA WORKING
+  private void setAngle(int id, char angleType, double angle) {
+    if (angleType == 'p') chain.theta[id] = angle;
+    else chain.tao[id] = angle;
+  }
 
-  public void redo() {
-    Undo r = redoStack.pollLast();
-    if (r != null) {
-      history.offerLast(r);
-      if (r.angleType == 'p') {
-        System.out.println("re");
-        System.out.println(r);
-        angles[r.id].theta = r.angle;
-        links = buildLinks(r.id);
-        buildSequence();
-        thetaSlider.setValue(r.angle);
-        selectedNode = links[r.id].node;
-        selectedNode.setMaterial(green);
-        history.offerLast(new Undo(r.id, 'p', thetaSlider.getValue()));
+  // sets one angle of a node and shows the node selected. only the nodes
+  // after it are moved, as for a slider edit
+  private void applyMove(int id, char angleType, double angle) {
+    setAngle(id, angleType, angle);
+    buildLinks(id);
+    buildSequence();
+    isSettingSliders = true;
+    updateSliders(id);
+    isSettingSliders = false;
+    updateLinkLabels(id);
+    showScore();
+  }
+
+  // input recorded for replaying later, null while not recording
+  private InputTrace recording;
+  // the game as it was when recording started, null if nothing was open
+  private SessionFile recordingStart;
+  // set while a trace is replayed, so its events are not recorded again
+  private boolean isReplaying;
+
+  private void record(char eventType, int id, double angle, String path) {
+    if (recording != null && !isReplaying) recording.add(eventType, id, angle, path);
+  }
+
+  private void recordFold() {
+    if (recording != null && !isReplaying) recording.addFold(chain.theta, chain.tao);
+  }
+
+  // a trace starts by opening the game as it was when recording started,
+  // saved as a session beside the trace, so it replays from the same fold
+  // and undo history
+  @FXML
+  private void toggleRecording(ActionEvent e) {
+    if (((CheckMenuItem) e.getSource()).isSelected()) {
+      stopAutoFold();
+      pacer.flush();
+      recording = new InputTrace();
+      recording.start();
+      recordingStart = null;
+      if (chain != null && session != null) {
+        recordingStart = copySession();
+        // the path is known once the trace is saved
+        recording.add(InputTrace.OPEN, -1, 0.0, null);
+      }
+      return;
+    }
+    InputTrace trace = recording;
+    SessionFile start = recordingStart;
+    recording = null;
+    recordingStart = null;
+    if (trace == null || trace.getCount() == 0) return;
+    FileChooser fileModal = new FileChooser();
+    fileModal.setTitle("Save Input Trace...");
+    fileModal.getExtensionFilters().add(
+      new ExtensionFilter("Input Trace \".txt\"", "*.txt")
+    );
+    File f = fileModal.showSaveDialog(app.getScene().getWindow());
+    if (f == null) return;
+    try {
+      if (start != null) {
+        String base = f.getPath();
+        if (base.endsWith(".txt")) base = base.substring(0, base.length() - 4);
+        File startFile = new File(base + ".pfs");
+        start.write(startFile);
+        trace.path[0] = startFile.getAbsolutePath();
       }
-      else {
-        angles[r.id].tao = r.angle;
-        links = buildLinks(r.id);
-        buildSequence();
-        taoSlider.setValue(r.angle);
-        selectedNode = links[r.id].node;
-        selectedNode.setMaterial(green);
-        history.offerLast(new Undo(r.id, 'd', taoSlider.getValue()));
+      trace.write(f);
+    }
+    catch (IOException ex) {
+      System.out.println("ERROR: " + ex.getMessage());
+    }
+  }
+
+  // a copy of the session as it is now, with its own angles and history
+  private SessionFile copySession() {
+    SessionFile s = new SessionFile();
+    s.name = session.name;
+    s.puzzlePath = session.puzzlePath;
+    s.sequence = session.sequence;
+    s.secondary = session.secondary;
+    s.restraintCount = session.restraintCount;
+    s.restraintTotal = session.restraintTotal;
+    s.theta = chain.theta.clone();
+    s.tao = chain.tao.clone();
+    history.fill(s);
+    return s;
+  }
+
+  @FXML
+  private void replayTrace(ActionEvent e) {
+    FileChooser fileModal = new FileChooser();
+    fileModal.setTitle("Replay Input Trace");
+    fileModal.getExtensionFilters().add(
+      new ExtensionFilter("Input Trace \".txt\"", "*.txt")
+    );
+    File f = fileModal.showOpenDialog(app.getScene().getWindow());
+    if (f != null) replay(f);
+  }
+
+  // replays every event of a trace through the same handlers as the mouse,
+  // sliders and menus, as fast as it can, and prints how long the events
+  // took. an event is timed until the chain, scene and score have caught up
+  // with it, which leaves out drawing the frame
+  public void replay(File f) {
+    InputTrace trace;
+    try {
+      trace = InputTrace.read(f);
+    }
+    catch (IOException ex) {
+      System.out.println("ERROR: " + ex.getMessage());
+      return;
+    }
+    // without an open first every event would act on whatever happens to
+    // be open, or on nothing
+    if (trace.getCount() == 0 || trace.getType(0) != InputTrace.OPEN) {
+      System.out.println("ERROR: " + f.getName() + " does not start by opening a puzzle or session");
+      return;
+    }
+    stopAutoFold();
+    isReplaying = true;
+    long start = System.nanoTime();
+    try {
+      for (int k = 0; k < trace.getCount(); k++) {
+        long t = System.nanoTime();
+        replayEvent(trace, k);
+        // rebuild now rather than on the next pulse
+        pacer.flush();
+        trace.latency[k] = System.nanoTime() - t;
       }
     }
+    finally {
+      isReplaying = false;
+    }
+    // autosave was off during the replay, so a session it opened no longer
+    // matches the game and must not be written over by later play
+    sessionFile = null;
+    printReplay(trace, System.nanoTime() - start);
+  }
+
+  private void replayEvent(InputTrace trace, int k) {
+    int id = trace.node[k];
+    switch (trace.getType(k)) {
+      case InputTrace.OPEN:
+        open(new File(trace.path[k]));
+        break;
+      case InputTrace.SELECT:
+        if (chain == null) break;
+        if (id == -1) deselect();
+        else select(id);
+        break;
+      case InputTrace.PRESS_THETA:
+        beginDrag('p');
+        break;
+      case InputTrace.PRESS_TAO:
+        beginDrag('d');
+        break;
+      case InputTrace.THETA:
+        thetaSlider.setValue(trace.value[k]);
+        break;
+      case InputTrace.TAO:
+        taoSlider.setValue(trace.value[k]);
+        break;
+      case InputTrace.RELEASE:
+        endDrag();
+        break;
+      case InputTrace.UNDO:
+        undo();
+        break;
+      case InputTrace.REDO:
+        redo();
+        break;
+      case InputTrace.SNAP:
+        snapFold(null);
+        break;
+      case InputTrace.FOLD:
+        replayFold(trace.angles[k]);
+        break;
+    }
+  }
+
+  // puts a fold recorded from auto-fold in place as one step to undo, as
+  // stopping the search did
+  private void replayFold(double[] angles) {
+    if (chain == null || angles.length != 2 * chain.length) return;
+    pacer.flush();
+    double[] theta = chain.theta.clone();
+    double[] tao = chain.tao.clone();
+    invalidateScore();
+    System.arraycopy(angles, 0, chain.theta, 0, chain.length);
+    System.arraycopy(angles, chain.length, chain.tao, 0, chain.length);
+    showFold();
+    history.addFold(theta, tao, chain);
+    updateScore();
+  }
+
+  // percentiles of the replay time of each kind of event, then the slowest
+  // events with their place in the trace
+  private void printReplay(InputTrace trace, long nanos) {
+    int n = trace.getCount();
+    System.out.printf("replayed %d events in %.1f ms%n", n, nanos / 1e6);
+    System.out.printf("%-12s %6s %9s %9s %9s%n", "event", "count", "p50 ms", "p95 ms", "max ms");
+    LinkedHashMap<String, ArrayList<Long>> byName = new LinkedHashMap<String, ArrayList<Long>>();
+    for (int k = 0; k < n; k++) {
+      byName.computeIfAbsent(trace.getName(k), name -> new ArrayList<Long>()).add(trace.latency[k]);
+    }
+    for (Map.Entry<String, ArrayList<Long>> entry : byName.entrySet()) {
+      ArrayList<Long> times = entry.getValue();
+      Collections.sort(times);
+      int count = times.size();
+      System.out.printf("%-12s %6d %9.3f %9.3f %9.3f%n", entry.getKey(), count,
+        times.get((count - 1) / 2) / 1e6,
+        times.get((int) Math.ceil(0.95 * count) - 1) / 1e6,
+        times.get(count - 1) / 1e6
+      );
+    }
+    Integer[] order = new Integer[n];
+    for (int k = 0; k < n; k++) order[k] = k;
+    Arrays.sort(order, (a, b) -> Long.compare(trace.latency[b], trace.latency[a]));
+    System.out.println("slowest events:");
+    for (int k = 0; k < Math.min(5, n); k++) {
+      int i = order[k];
+      System.out.printf("%9.3f ms  #%d %s%n", trace.latency[i] / 1e6, i + 1, trace.describe(i));
+    }
+  }
+
+  // folds the chain on every core in the background, showing the best fold
+  // found so far as a hint
+  private ReplicaExchange autoFold;
+  // angles from before the search, so the whole search is one step to undo
+  private double[] autoFoldTheta;
+  private double[] autoFoldTao;
+  @FXML private ToggleButton autoFoldButton;
+
+  @FXML
+  public void toggleAutoFold(ActionEvent e) {
+    if (autoFold != null) {
+      Chain best = autoFold.getBest();
+      if (best != null) applyFold(best);
+      stopAutoFold();
+      updateScore();
+      return;
+    }
+    if (chain == null || restraints == null || restraints.residues != chain.length) {
+      autoFoldButton.setSelected(false);
+      return;
+    }
+    pacer.flush();
+    autoFoldTheta = chain.theta.clone();
+    autoFoldTao = chain.tao.clone();
+    // folds arrive on the search thread and are shown on the next pulse,
+    // unless this search was stopped before then
+    ReplicaExchange[] search = new ReplicaExchange[1];
+    search[0] = new ReplicaExchange(restraints, chain, fold -> Platform.runLater(() -> {
+      if (autoFold == search[0]) applyFold(fold);
+    }));
+    autoFold = search[0];
+    autoFold.start();
+    autoFoldButton.setSelected(true);
+  }
+
+  // stops the search, keeping whichever fold was last shown as one step in
+  // the undo history
+  private void stopAutoFold() {
+    if (autoFold == null) return;
+    autoFold.stop();
+    autoFold = null;
+    autoFoldButton.setSelected(false);
+    recordFold();
+    history.addFold(autoFoldTheta, autoFoldTao, chain);
+    autoFoldTheta = null;
+    autoFoldTao = null;
+  }
+
+  // shows a fold in place of the current one. callers record it in the undo
+  // history as they see fit
+  private void applyFold(Chain fold) {
+    if (chain == null || fold.length != chain.length) return;
+    invalidateScore();
+    System.arraycopy(fold.theta, 0, chain.theta, 0, chain.length);
+    System.arraycopy(fold.tao, 0, chain.tao, 0, chain.length);
+    showFold();
+  }
+
+  // rebuilds the whole chain after many of its angles changed
+  private void showFold() {
+    buildLinks(-1);
+    buildSequence();
+    if (selected != -1) {
+      isSettingSliders = true;
+      updateSliders(selected);
+      isSettingSliders = false;
+    }
+    showScore();
+  }
+
+  // moves the fold to the nearest optimum of its restraints, keeping it
+  // clash free if it was. the snap is one step in the undo history
+  @FXML
+  public void snapFold(ActionEvent e) {
+    stopAutoFold();
+    if (chain == null || restraints == null || restraints.residues != chain.length) return;
+    record(InputTrace.SNAP, -1, 0.0, null);
+    pacer.flush();
+    Chain fold = chain.copy();
+    if (new FoldMinimizer(restraints).minimize(fold)) {
+      double[] theta = chain.theta.clone();
+      double[] tao = chain.tao.clone();
+      applyFold(fold);
+      history.addFold(theta, tao, chain);
+      updateScore();
+    }
   }
 
   // contact map fields
   @FXML private GridPane contactMap;
   @FXML private Text score;
+  // single image holding every cell of the contact map
+  private ContactMapImage contactMapImage;
 
-  private double[][] distanceArray;
-  private boolean[][] isContact;
+  private RestraintSet restraints;
+  // running score kept in step with every edit
+  private IncrementalScorer scorer;
+  // full scoring of released moves runs off the application thread
+  private ScoreWorker scoreWorker;
   private int width;
   private int side;
-  private double cellSize;
   private int totalScore;
 
-  public void generateContactMap(File f) throws IOException {
-    // add error handling
-    if (f == null || links == null) {
-      contactMap.getChildren().clear();
-      contactMap.getChildren().add(new Rectangle(280, 280, Color.WHITE));
+  public void generateContactMap(RestraintSet r) {
+    if (contactMapImage == null) {
+      contactMapImage = new ContactMapImage();
+      contactMap.getChildren().add(contactMapImage);
+    }
+    if (r == null || chain == null) {
+      contactMapImage.clear(280);
       return;
     }
 
     width = 240;
-    side = links.length;
-    cellSize = (double) width / side;
-    distanceArray = new double[side][side];
-    BufferedReader br = new BufferedReader(new FileReader(f));
-    double totalScoreDouble = 0.0;
-
-    totalScore = 0;
-    while (true) {
-      String line = br.readLine();
-      if (line == null) break;
-      StringTokenizer st = new StringTokenizer(line);
-      int i = Integer.parseInt(st.nextToken()) - 1;
-      int j = Integer.parseInt(st.nextToken()) - 1;
-      String trash = st.nextToken();
-      trash = st.nextToken();
-      double dist = Double.parseDouble(st.nextToken());
-      totalScoreDouble += dist;
-      distanceArray[i][j] = dist;
-    }
-
-    totalScore = (int) totalScoreDouble;
-    for (int i = 0; i < side; i++) {
-      for (int j = 0; j < side; j++) {
-        Rectangle r = new Rectangle(cellSize, cellSize);
-        if (i == j) {
-          r.setFill(Color.GREY);
-        }
-        else if (i < j) {
-          if (distanceArray[i][j] == 0.0) {
-            r.setFill(Color.GREY);
-            distanceArray[i][j] = -1;
-          }
-          else {
-            r.setFill(Color.rgb(0, 255, 0));
-          }
-        }
-        else {
-          distanceArray[i][j] = getDistance(links[i], links[j]);
-          double err = Math.abs((distanceArray[j][i] - distanceArray[i][j]) / distanceArray[j][i]);
-          int greenValue = (int)Math.min((err * 510), 255.0);
-          int redValue = Math.min(510 - greenValue, 255);
-          r.setFill(Color.rgb(redValue, greenValue, 0));
-        }
-        contactMap.add(r, j, i);
-      }
-    }
-    score.setText(" 0 / " + totalScore);
+    side = chain.length;
+    restraints = r;
+    scorer = new IncrementalScorer(restraints);
+    scorer.reset(chain);
+    if (scoreWorker != null) scoreWorker.shutdown();
+    scoreWorker = new ScoreWorker(restraints, result -> Platform.runLater(() -> applyScore(result)));
+    contactMapImage.load(restraints, width);
+
+    totalScore = (int) restraints.total;
+    updateContactMap(0);
   }
 
   public int getWeight(int i, int j) {
@@ -763,83 +1184,67 @@
 
   //divide the score of it by the multiples it is from it
   public void updateScore() {
-    if (links == null) return;
-    if (!contactMapLoaded) return;
-    double newScore = 0;
-    for (int i = 1; i < side; i++) {
-      for (int j = 0; j < i; j++) {
-        double expected = distanceArray[j][i];
-        double actual = getDistance(links[i], links[j]);
-        if (actual < 3.7) {
-          undo();
-          return;
-        }
-        double offBy = actual - expected;
-        if (offBy < expected) {
-          newScore += (expected - offBy);
-        } 
-        else if (offBy / 10.0 < expected) {
-          newScore += Math.abs((expected - offBy)) / 10;
-        }
-      }
+    pacer.flush();
+    if (chain == null) return;
+    autosaveSession();
+    if (!contactMapLoaded || scoreWorker == null) return;
+    // a newer submit supersedes the last, so this times the latest one
+    profiler.setContext(chain.length, -1);
+    profiler.begin(StageProfiler.SCORE_WORKER);
+    // a replay waits for the score so a clash is taken back before the
+    // next event, as it was while recording
+    if (isReplaying) applyScore(scoreWorker.score(chain));
+    else scoreWorker.submit(chain);
+  }
+
+  // drops any score still being worked out, as the chain is being edited
+  // and the score would be of a fold that is no longer shown
+  private void invalidateScore() {
+    if (scoreWorker != null) scoreWorker.invalidate();
+  }
+
+  // shows a result from the score worker unless the chain changed since
+  public void applyScore(ScoreWorker.Result result) {
+    if (result == null || scoreWorker == null || !scoreWorker.isCurrent(result)) return;
+    // other edits may have been profiled while the worker ran
+    profiler.setContext(result.chain.length, -1);
+    profiler.end(StageProfiler.SCORE_WORKER);
+    // a move that clashes is taken back, and cannot be redone either
+    if (result.isClash) {
+      undoMove();
+      history.clearRedo();
+      return;
     }
-    progressBar.setProgress(newScore / totalScore);
-    updateContactMap((int)newScore);
+    progressBar.setProgress(result.score / totalScore);
+    profiler.begin(StageProfiler.CONTACT_MAP);
+    contactMapImage.update(restraints, result.distance);
+    profiler.end(StageProfiler.CONTACT_MAP);
+    score.setText(" " + (int) result.score + " / " + totalScore);
   }
 
-  public double getDistance(Link a, Link b) {
-    double x0, y0, z0, xF, yF, zF;
-    x0 = a.getTranslateX();
-    y0 = a.getTranslateY();
-    z0 = a.getTranslateZ();
-    xF = b.getTranslateX();
-    yF = b.getTranslateY();
-    zF = b.getTranslateZ();
-    double deltaX = xF - x0;
-    double deltaY = yF - y0;
-    double deltaZ = zF - z0;
-    double sum = Math.pow(deltaX, 2) + Math.pow(deltaY, 2) + Math.pow(deltaZ, 2);
-    return Math.sqrt(sum);
+  // rescores the restraints affected by nodes from start onwards moving
+  public void updateScorer(int start) {
+    if (scorer == null || scorer.restraints.residues != chain.length) return;
+    scorer.update(chain, start);
+  }
+
+  // shows the running score and contact map while dragging
+  public void showScore() {
+    if (scorer == null || !contactMapLoaded) return;
+    progressBar.setProgress(scorer.getScore() / totalScore);
+    updateContactMap((int) scorer.getScore());
   }
 
   public void updateContactMap(int newScore) {
-    Scanner pause = new Scanner(System.in);
-    contactMap.getChildren().clear();
-    for (int i = 0; i < side; i++) {
-      for (int j = 0; j < side; j++) {
-        Rectangle rect = new Rectangle(cellSize, cellSize);
-        if (distanceArray[i][j] < 0 || distanceArray[j][i] < 0) {
-          rect.setFill(Color.GREY);
-        }
-        else if (i < j) {
-          rect.setFill(Color.rgb(0, 255, 0));
-        }
-        else if (distanceArray[i][j] > 0) {
-          distanceArray[i][j] = getDistance(links[i], links[j]);
-          double expected = distanceArray[j][i];
-          double actual = distanceArray[i][j];
-          double err = Math.min( (expected / actual), (actual / expected));
-          int g = (int) (510 * err);
-          int r = Math.min(Math.abs(510 - g), 254);
-          g = Math.min(g, 254);
-          rect.setFill(Color.rgb(r, g, 0));
-        }
-        else if (i == j) {
-          rect.setFill(Color.BLACK);
-        }
-        else {
-          rect.setFill(Color.rgb(0, 0, 230));
-        }
-        
-        contactMap.add(rect, j, i);
-      }
-    }
+    profiler.begin(StageProfiler.CONTACT_MAP);
+    contactMapImage.update(restraints, scorer.distance);
+    profiler.end(StageProfiler.CONTACT_MAP);
     score.setText(" " + newScore + " / " + totalScore);
   }
 
   @FXML
   public void saveToPDB(ActionEvent e) throws IOException {
-    if (links == null) return;
+    if (chain == null) return;
     FileChooser fileModal = new FileChooser();
     fileModal.setTitle("Save As...");
     fileModal.getExtensionFilters().add(
@@ -852,21 +1257,42 @@
   }
 
   public void writeToPDB(File f) throws IOException {
-    BufferedWriter bw = new BufferedWriter(new FileWriter(f));
-    carts = DihedralUtility.angles2Carts(angles);
-    for (int i = 0; i < links.length; i++) {
-      String s = String.format(
-        "ATOM %6d  CA  %-3s %5d    %8.3f%8.3f%8.3f  1.00  0.00\n",
-        i+1,
-        threeCharAA.get(angles[i].aa),
-        angles[i].id,
-        carts[i].ca.x,
-        carts[i].ca.y,
-        carts[i].ca.z
-      );
-      bw.write(s);
+    pacer.flush();
+    PdbWriter writer = new PdbWriter(f);
+    try {
+      writer.writeChain(chain);
+    }
+    finally {
+      writer.close();
+    }
+  }
+
+  @FXML
+  public void saveTrajectory(ActionEvent e) throws IOException {
+    if (chain == null) return;
+    FileChooser fileModal = new FileChooser();
+    fileModal.setTitle("Export Trajectory...");
+    fileModal.getExtensionFilters().add(
+      new ExtensionFilter("Protein Data Bank \".pdb\"", "*.pdb")
+    );
+    File f = fileModal.showSaveDialog(app.getScene().getWindow());
+    if (f != null) {
+      writeTrajectory(f);
+    }
+  }
+
+  // writes the fold before every move in the undo history and after the
+  // last one, one model each
+  public void writeTrajectory(File f) throws IOException {
+    pacer.flush();
+    fillSession();
+    PdbWriter writer = new PdbWriter(f);
+    try {
+      writer.writeTrajectory(chain, session.moveNode, session.moveType, session.moveAngle, session.moveJoined, session.undoCount);
+    }
+    finally {
+      writer.close();
     }
-    bw.close();
   }
 
   public void initialize() throws IOException {
@@ -874,14 +1300,14 @@
     // buildAxes();
     initPNGs();
     initShorthandMaps();
-    initSecondaryMaps();
     generateContactMap(null);
     resetSliders();
     SubScene view = initView(world);
-    Pane viewport = new Pane(view);
+    Pane viewport = new Pane(view, overlay);
     sizeView(view);
     app.setCenter(viewport);
     handle3DMouse(view, world);
     handleSliders();
+    pacer.start();
   }
 }
@@ -0,0 +1,39 @@
+import javafx.animation.AnimationTimer;
+import java.util.function.IntConsumer;
+
+// coalesces edits so the chain is rebuilt at most once per rendered frame.
+// sliders can report many values per frame during a fast drag - each one
+// only records the lowest residue edited, and the rebuild runs on the next
+// pulse from that residue onwards
+public class FramePacer extends AnimationTimer {
+  private final IntConsumer rebuild;
+  // lowest residue edited since the last rebuild, -1 if none
+  private int pending = -1;
+
+  public FramePacer(IntConsumer rebuild) {
+    super();
+    this.rebuild = rebuild;
+  }
+
+  public void request(int index) {
+    pending = (pending == -1) ? index : Math.min(pending, index);
+  }
+
+  public boolean hasPending() {
+    return pending != -1;
+  }
+
+  // applies any outstanding edits now - called before anything that reads
+  // the coordinates outside of a frame
+  public void flush() {
+    if (pending == -1) return;
+    int index = pending;
+    pending = -1;
+    rebuild.accept(index);
+  }
+
+  @Override
+  public void handle(long now) {
+    flush();
+  }
+}
@@ -0,0 +1,232 @@
+import dihedralutils.Chain;
+import fileutils.SessionFile;
+
+// undo and redo history of angle moves, kept in fixed size primitive arrays
+// used as a ring. the undo moves are followed by the redo moves, so undoing
+// only moves the cursor back and redoing moves it forward again. a new move
+// drops the redo moves, and once the ring is full the oldest move is dropped,
+// so memory stays the same however long a game goes on. a whole fold put in
+// place at once is kept as a step of moves joined to the one before them,
+// which are undone and redone together
+public class MoveHistory {
+  public static final int CAPACITY = 4096;
+
+  private final int[] node;
+  private final byte[] type;
+  private final double[] before;
+  private final double[] after;
+  // true for a move made in the same step as the move before it
+  private final boolean[] joined;
+  // slot of the oldest move
+  private int start;
+  private int undoCount;
+  private int redoCount;
+
+  // a slider drag is recorded as one move once the slider is released
+  private boolean isDragging;
+  private int dragNode;
+  private char dragType;
+  private double dragBefore;
+
+  public MoveHistory() {
+    this(CAPACITY);
+  }
+
+  public MoveHistory(int capacity) {
+    node = new int[capacity];
+    type = new byte[capacity];
+    before = new double[capacity];
+    after = new double[capacity];
+    joined = new boolean[capacity];
+  }
+
+  public int getUndoCount() {
+    return undoCount;
+  }
+
+  public int getRedoCount() {
+    return redoCount;
+  }
+
+  public void clear() {
+    start = 0;
+    undoCount = 0;
+    redoCount = 0;
+    isDragging = false;
+  }
+
+  public void clearRedo() {
+    redoCount = 0;
+  }
+
+  // remembers the angle ('p' planar or 'd' dihedral) of a node as a drag of
+  // it starts
+  public void beginDrag(int id, char angleType, double angle) {
+    isDragging = true;
+    dragNode = id;
+    dragType = angleType;
+    dragBefore = angle;
+  }
+
+  // records the drag as one move, unless it ended where it started. returns
+  // true if a move was recorded
+  public boolean endDrag(Chain chain) {
+    if (!isDragging) return false;
+    isDragging = false;
+    if (dragNode >= chain.length) return false;
+    double angle = (dragType == 'p' ? chain.theta : chain.tao)[dragNode];
+    if (angle == dragBefore) return false;
+    add(dragNode, dragType, dragBefore, angle);
+    return true;
+  }
+
+  // records a move after the undo moves, dropping the redo moves
+  public void add(int id, char angleType, double angleBefore, double angleAfter) {
+    add(id, angleType, angleBefore, angleAfter, false);
+  }
+
+  // records going from the angles before to those of chain now as one step,
+  // with a move for every angle that changed. a step with more moves than
+  // the history holds cannot be undone, so the history is cleared instead.
+  // returns true if a step was recorded
+  public boolean addFold(double[] thetaBefore, double[] taoBefore, Chain chain) {
+    int moves = 0;
+    for (int i = 0; i < chain.length; i++) {
+      if (thetaBefore[i] != chain.theta[i]) moves++;
+      if (taoBefore[i] != chain.tao[i]) moves++;
+    }
+    if (moves == 0) return false;
+    if (moves > node.length) {
+      clear();
+      return false;
+    }
+    boolean isJoined = false;
+    for (int i = 0; i < chain.length; i++) {
+      if (thetaBefore[i] != chain.theta[i]) {
+        add(i, 'p', thetaBefore[i], chain.theta[i], isJoined);
+        isJoined = true;
+      }
+      if (taoBefore[i] != chain.tao[i]) {
+        add(i, 'd', taoBefore[i], chain.tao[i], isJoined);
+        isJoined = true;
+      }
+    }
+    return true;
+  }
+
+  private void add(int id, char angleType, double angleBefore, double angleAfter, boolean isJoined) {
+    redoCount = 0;
+    if (undoCount == node.length) {
+      // the oldest step goes as a whole, so no step is left half undoable
+      do {
+        start = (start + 1) % node.length;
+        undoCount--;
+      } while (undoCount > 0 && joined[getSlot(0)]);
+    }
+    put(undoCount, id, angleType, angleBefore, angleAfter, isJoined);
+    undoCount++;
+  }
+
+  // steps back over the latest move and returns its slot, or -1 if there is
+  // nothing to undo. the move becomes the next one to redo
+  public int undo() {
+    if (undoCount == 0) return -1;
+    undoCount--;
+    redoCount++;
+    return getSlot(undoCount);
+  }
+
+  // steps forward over the next undone move and returns its slot, or -1 if
+  // there is nothing to redo
+  public int redo() {
+    if (redoCount == 0) return -1;
+    redoCount--;
+    undoCount++;
+    return getSlot(undoCount - 1);
+  }
+
+  // true if the move in slot was made in the same step as the move before
+  // it, so undoing it goes on to undo that one as well
+  public boolean isJoined(int slot) {
+    return joined[slot];
+  }
+
+  // true if the next move to redo was made in the same step as the move
+  // just redone, so it is redone as well
+  public boolean isRedoJoined() {
+    return redoCount > 0 && joined[getSlot(undoCount)];
+  }
+
+  public int getNode(int slot) {
+    return node[slot];
+  }
+
+  public char getType(int slot) {
+    return (char) type[slot];
+  }
+
+  public double getBefore(int slot) {
+    return before[slot];
+  }
+
+  public double getAfter(int slot) {
+    return after[slot];
+  }
+
+  // copies the moves into a session as it stores them - the undo moves
+  // oldest first with the angle before each, then the redo moves in the
+  // order they were undone with the angle after each
+  public void fill(SessionFile s) {
+    s.clearMoves();
+    for (int k = 0; k < undoCount; k++) {
+      int slot = getSlot(k);
+      s.addMove(node[slot], (char) type[slot], before[slot], false, joined[slot]);
+    }
+    for (int k = undoCount + redoCount - 1; k >= undoCount; k--) {
+      int slot = getSlot(k);
+      s.addMove(node[slot], (char) type[slot], after[slot], true, joined[slot]);
+    }
+  }
+
+  // refills the history from the moves of a session. a session keeps one
+  // angle per move, so the other is found by winding its angles back
+  // through the undo moves and forward through the redo moves
+  public void load(SessionFile s) {
+    clear();
+    double[][] angles = { s.theta.clone(), s.tao.clone() };
+    // winding back gives the undo moves latest first
+    double[] angleAfter = new double[s.undoCount];
+    for (int k = s.undoCount - 1; k >= 0; k--) {
+      double[] a = angles[s.moveType[k] == 'p' ? 0 : 1];
+      angleAfter[k] = a[s.moveNode[k]];
+      a[s.moveNode[k]] = s.moveAngle[k];
+    }
+    for (int k = 0; k < s.undoCount; k++) {
+      add(s.moveNode[k], (char) s.moveType[k], s.moveAngle[k], angleAfter[k], s.moveJoined[k]);
+    }
+    angles[0] = s.theta.clone();
+    angles[1] = s.tao.clone();
+    // the next move to redo is the last one stored
+    for (int k = s.getMoveCount() - 1; k >= s.undoCount; k--) {
+      if (undoCount + redoCount == node.length) break;
+      double[] a = angles[s.moveType[k] == 'p' ? 0 : 1];
+      put(undoCount + redoCount, s.moveNode[k], (char) s.moveType[k], a[s.moveNode[k]], s.moveAngle[k], s.moveJoined[k]);
+      a[s.moveNode[k]] = s.moveAngle[k];
+      redoCount++;
+    }
+  }
+
+  private void put(int k, int id, char angleType, double angleBefore, double angleAfter, boolean isJoined) {
+    int slot = getSlot(k);
+    node[slot] = id;
+    type[slot] = (byte) angleType;
+    before[slot] = angleBefore;
+    after[slot] = angleAfter;
+    joined[slot] = isJoined;
+  }
+
+  // slot of the kth move, counting from the oldest
+  private int getSlot(int k) {
+    return (start + k) % node.length;
+  }
+}
@@ -0,0 +1,69 @@
+import javafx.animation.AnimationTimer;
+import javafx.scene.control.Label;
+
+// on screen table of the median, 95th and 99th percentile time of each stage
+// of the last edits, and of the time between animation pulses. it only measures and
+// redraws while shown, and redraws a few times a second so the text itself
+// does not cost a layout on every frame
+public class PerformanceOverlay extends Label {
+  private static final long REFRESH_NANOS = 250_000_000L;
+
+  private final StageProfiler profiler;
+  private final StringBuilder sb = new StringBuilder();
+  private final AnimationTimer timer = new AnimationTimer() {
+    private long lastPulse = -1;
+    private long lastRefresh;
+
+    @Override
+    public void handle(long now) {
+      if (lastPulse != -1) profiler.record(StageProfiler.PULSE, now - lastPulse);
+      lastPulse = now;
+      if (now - lastRefresh < REFRESH_NANOS) return;
+      lastRefresh = now;
+      refresh();
+    }
+
+    @Override
+    public void stop() {
+      super.stop();
+      lastPulse = -1;
+    }
+  };
+
+  public PerformanceOverlay(StageProfiler profiler) {
+    super();
+    this.profiler = profiler;
+    setMouseTransparent(true);
+    setStyle(
+      "-fx-background-color: rgba(0, 0, 0, 0.6);" +
+      "-fx-text-fill: white;" +
+      "-fx-font-family: monospace;" +
+      "-fx-font-size: 11px;" +
+      "-fx-padding: 6px;"
+    );
+    setVisible(false);
+  }
+
+  public void show(boolean isShown) {
+    setVisible(isShown);
+    if (isShown) timer.start();
+    else timer.stop();
+  }
+
+  private void refresh() {
+    sb.setLength(0);
+    sb.append(String.format("%-13s %7s %7s %7s%n", "ms", "p50", "p95", "p99"));
+    for (int stage = 0; stage < StageProfiler.NAMES.length; stage++) {
+      if (profiler.getCount(stage) == 0) continue;
+      sb.append(String.format("%-13s %7.2f %7.2f %7.2f%n",
+        StageProfiler.NAMES[stage],
+        profiler.getPercentile(stage, 50),
+        profiler.getPercentile(stage, 95),
+        profiler.getPercentile(stage, 99)
+      ));
+    }
+    // drop the last line break
+    sb.setLength(sb.length() - System.lineSeparator().length());
+    setText(sb.toString());
+  }
+}
@@ -1,9 +1,12 @@
 import javafx.application.Application;
+import javafx.application.Platform;
 import javafx.fxml.FXMLLoader;
 import javafx.scene.*;
 import javafx.scene.layout.*;
 import javafx.stage.*;
+import java.io.File;
 import java.io.IOException;
+import java.util.List;
 
 public class PolyFold extends Application {
 
@@ -37,6 +40,16 @@ public class PolyFold extends Application {
     // set stage size to be minimum 1024 x 768
     stage.setMinWidth(stage.getWidth());
     stage.setMinHeight(stage.getHeight());
+
+    // java PolyFold --replay trace.txt replays an input trace once the
+    // window is up, prints how long it took and quits
+    List<String> args = getParameters().getRaw();
+    if (args.size() == 2 && args.get(0).equals("--replay")) {
+      Platform.runLater(() -> {
+        c.replay(new File(args.get(1)));
+        Platform.exit();
+      });
+    }
   }
 
   //Takes a String and sets the stage title to that
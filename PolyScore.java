@@ -0,0 +1,184 @@
+import contactutils.BatchEvaluator;
+import contactutils.ClashGrid;
+import contactutils.ContactScore;
+import contactutils.FoldMinimizer;
+import dihedralutils.Chain;
+import fileutils.PdbWriter;
+import fileutils.Puzzle;
+import java.io.*;
+import java.util.*;
+
+// scores folds against a puzzle without starting the game, e.g.
+//   $ java PolyScore puzzle.zip fold1.pdb fold2.txt
+// prints one line per fold with its score, or "clash" if two nodes overlap.
+// every model of a multi model .pdb is scored, printed as path#model.
+// a fold of "-" reads further fold paths from standard input, one per line.
+// with --parallel every fold is read first and then scored on all cores, and
+// the throughput is reported on standard error.
+// with --minimize every fold is first snapped to the nearest optimum of its
+// restraints, the new score is printed and the snapped folds are written as
+// the models of one .pdb
+public class PolyScore {
+  public static void main(String[] args) throws IOException {
+    int first = 0;
+    boolean isParallel = false;
+    String minimizedPath = null;
+    while (first < args.length && args[first].startsWith("--")) {
+      if (args[first].equals("--parallel")) {
+        isParallel = true;
+        first++;
+      }
+      else if (args[first].equals("--minimize") && first + 1 < args.length) {
+        minimizedPath = args[first+1];
+        first += 2;
+      }
+      else {
+        break;
+      }
+    }
+    if (args.length - first < 2 || (isParallel && minimizedPath != null)) {
+      System.err.println("usage: java PolyScore [--parallel | --minimize <out.pdb>] <puzzle.zip | puzzle.aa> <fold.pdb | fold.txt | ->...");
+      System.exit(2);
+    }
+    Puzzle puzzle = Puzzle.read(new File(args[first]));
+    if (puzzle.restraints == null) {
+      System.err.println("ERROR: " + args[first] + " has no .rr restraints to score against");
+      System.exit(2);
+    }
+    List<String> paths = new ArrayList<String>();
+    for (int a = first + 1; a < args.length; a++) {
+      if (args[a].equals("-")) {
+        BufferedReader br = new BufferedReader(new InputStreamReader(System.in));
+        String line;
+        while ((line = br.readLine()) != null) {
+          if (!line.trim().isEmpty()) paths.add(line.trim());
+        }
+      }
+      else {
+        paths.add(args[a]);
+      }
+    }
+    PolyScore scorer = new PolyScore(puzzle);
+    if (isParallel) {
+      scorer.scoreParallel(paths);
+    }
+    else if (minimizedPath != null) {
+      scorer.minimize(paths, new File(minimizedPath));
+    }
+    else {
+      for (String path : paths) {
+        scorer.score(path);
+      }
+    }
+    System.out.flush();
+    if (scorer.failed) System.exit(1);
+  }
+
+  private final Puzzle puzzle;
+  private final ClashGrid clashGrid = new ClashGrid();
+  private final int totalScore;
+  private boolean failed = false;
+
+  public PolyScore(Puzzle puzzle) {
+    this.puzzle = puzzle;
+    this.totalScore = (int) puzzle.restraints.total;
+  }
+
+  public void scoreParallel(List<String> paths) {
+    List<String> read = new ArrayList<String>();
+    List<Chain> chains = new ArrayList<Chain>();
+    for (String path : paths) {
+      try {
+        List<Chain> folds = puzzle.readFolds(new File(path));
+        for (int m = 0; m < folds.size(); m++) {
+          read.add(getLabel(path, m, folds.size()));
+          chains.add(folds.get(m));
+        }
+      }
+      catch (IOException | RuntimeException e) {
+        System.err.println("ERROR: " + path + ": " + e.getMessage());
+        failed = true;
+      }
+    }
+    BatchEvaluator evaluator = new BatchEvaluator(puzzle.restraints);
+    // folds are scored as read, so a .pdb scores the same as without --parallel
+    BatchEvaluator.Report report = evaluator.evaluate(chains.toArray(new Chain[0]));
+    for (int c = 0; c < read.size(); c++) {
+      if (report.isClash(c)) {
+        System.out.println(read.get(c) + " clash");
+      }
+      else {
+        System.out.println(read.get(c) + " " + (int) report.scores[c] + " / " + totalScore);
+      }
+    }
+    System.err.printf("scored %d folds in %.1f ms (%.0f folds/s)%n", read.size(), report.nanos / 1e6, report.getThroughput());
+  }
+
+  public void score(String path) {
+    try {
+      List<Chain> folds = puzzle.readFolds(new File(path));
+      for (int m = 0; m < folds.size(); m++) {
+        Chain chain = folds.get(m);
+        String label = getLabel(path, m, folds.size());
+        if (clashGrid.hasClash(chain)) {
+          System.out.println(label + " clash");
+        }
+        else {
+          int score = (int) ContactScore.getScore(puzzle.restraints, chain);
+          System.out.println(label + " " + score + " / " + totalScore);
+        }
+      }
+    }
+    catch (IOException | RuntimeException e) {
+      System.err.println("ERROR: " + path + ": " + e.getMessage());
+      failed = true;
+    }
+  }
+
+  // snaps every fold and writes them as the models of out, in the order read
+  public void minimize(List<String> paths, File out) throws IOException {
+    FoldMinimizer minimizer = new FoldMinimizer(puzzle.restraints);
+    int count = 0;
+    long iterations = 0;
+    long nanos = 0;
+    PdbWriter writer = new PdbWriter(out);
+    try {
+      for (String path : paths) {
+        List<Chain> folds;
+        try {
+          folds = puzzle.readFolds(new File(path));
+        }
+        catch (IOException | RuntimeException e) {
+          System.err.println("ERROR: " + path + ": " + e.getMessage());
+          failed = true;
+          continue;
+        }
+        for (int m = 0; m < folds.size(); m++) {
+          Chain chain = folds.get(m);
+          long start = System.nanoTime();
+          minimizer.minimize(chain);
+          nanos += System.nanoTime() - start;
+          iterations += minimizer.iterations;
+          count++;
+          String label = getLabel(path, m, folds.size());
+          if (clashGrid.hasClash(chain)) {
+            System.out.println(label + " clash");
+          }
+          else {
+            System.out.println(label + " " + (int) minimizer.score + " / " + totalScore);
+          }
+          writer.writeModel(chain);
+        }
+      }
+    }
+    finally {
+      writer.close();
+    }
+    System.err.printf("minimized %d folds in %.1f ms (%d iterations)%n", count, nanos / 1e6, iterations);
+  }
+
+  // models of a trajectory are told apart by their one indexed number
+  private static String getLabel(String path, int model, int models) {
+    return models == 1 ? path : path + "#" + (model + 1);
+  }
+}
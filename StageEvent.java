@@ -0,0 +1,25 @@
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+// flight recorder event for one stage of turning an edit into a frame. the
+// event's duration is the time the stage took
+@Name("polyfold.Stage")
+@Label("Pipeline Stage")
+@Category("PolyFold")
+@Description("One stage of rebuilding the chain, scene or score after an edit")
+@StackTrace(false)
+public class StageEvent extends jdk.jfr.Event {
+  @Label("Stage")
+  public String stage;
+
+  @Label("Residues")
+  @Description("Length of the chain")
+  public int residues;
+
+  @Label("Edited Residue")
+  @Description("Lowest residue edited since the last frame, -1 if the whole chain was rebuilt")
+  public int residue;
+}
@@ -0,0 +1,98 @@
+import java.util.Arrays;
+import jdk.jfr.EventType;
+
+// times each stage of turning an edit into a frame. every timing is kept in a
+// window of the latest samples of its stage for the performance overlay, and
+// is committed as a StageEvent while a flight recording is running, e.g.
+//   $ java -XX:StartFlightRecording=filename=polyfold.jfr PolyFold
+// stages may nest, and beginning a stage again before it ends starts it over.
+// with no recording running timing a stage allocates nothing
+public class StageProfiler {
+  // a rebuild on one pulse, covering the stages below it
+  public static final int FRAME = 0;
+  // coordinates from angles
+  public static final int GEOMETRY = 1;
+  // mesh vertices and colours
+  public static final int MESH = 2;
+  public static final int CLASHES = 3;
+  // running score of the restraints that moved
+  public static final int SCORE = 4;
+  public static final int SCENE = 5;
+  public static final int CAMERA = 6;
+  public static final int CONTACT_MAP = 7;
+  // from asking the score worker for a full score to showing it
+  public static final int SCORE_WORKER = 8;
+  // time between animation pulses, not the time a frame took to draw. only
+  // kept in the window
+  public static final int PULSE = 9;
+  public static final String[] NAMES = {
+    "frame", "geometry", "mesh", "clashes", "score", "scene", "camera", "contact map", "score worker", "pulse gap"
+  };
+  // samples kept per stage
+  public static final int WINDOW = 256;
+
+  private static final EventType EVENT = EventType.getEventType(StageEvent.class);
+
+  private final long[] startNanos = new long[NAMES.length];
+  private final StageEvent[] open = new StageEvent[NAMES.length];
+  // ring of the latest samples of each stage, in nanoseconds
+  private final long[][] samples = new long[NAMES.length][WINDOW];
+  private final long[] counts = new long[NAMES.length];
+  private final long[] sorted = new long[WINDOW];
+
+  // context stored with every event, set by whoever starts the work
+  public int residues;
+  public int residue = -1;
+
+  // sets the context of the stages that follow - the chain length and the
+  // edited residue, -1 if the whole chain is being rebuilt
+  public void setContext(int residues, int residue) {
+    this.residues = residues;
+    this.residue = residue;
+  }
+
+  public void begin(int stage) {
+    startNanos[stage] = System.nanoTime();
+    if (EVENT.isEnabled()) {
+      StageEvent e = new StageEvent();
+      e.begin();
+      open[stage] = e;
+    }
+  }
+
+  public void end(int stage) {
+    record(stage, System.nanoTime() - startNanos[stage]);
+    StageEvent e = open[stage];
+    if (e == null) return;
+    open[stage] = null;
+    e.end();
+    if (e.shouldCommit()) {
+      e.stage = NAMES[stage];
+      e.residues = residues;
+      e.residue = residue;
+      e.commit();
+    }
+  }
+
+  // keeps a timing measured elsewhere
+  public void record(int stage, long nanos) {
+    samples[stage][(int) (counts[stage] % WINDOW)] = nanos;
+    counts[stage]++;
+  }
+
+  // samples of a stage in the window
+  public int getCount(int stage) {
+    return (int) Math.min(counts[stage], WINDOW);
+  }
+
+  // the given percentile of the samples of a stage in the window, in
+  // milliseconds, or NaN if there are none
+  public double getPercentile(int stage, double percentile) {
+    int n = getCount(stage);
+    if (n == 0) return Double.NaN;
+    System.arraycopy(samples[stage], 0, sorted, 0, n);
+    Arrays.sort(sorted, 0, n);
+    int k = (int) Math.ceil(percentile / 100.0 * n) - 1;
+    return sorted[Math.max(0, Math.min(n - 1, k))] / 1e6;
+  }
+}
@@ -0,0 +1,143 @@
+package bench;
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.ArrayList;
+import java.util.List;
+
+// minimal micro benchmark runner. each benchmark is warmed up so the jit has
+// compiled it, then timed over several measurement iterations. the time and
+// bytes allocated per operation are reported - allocation comes from the
+// hotspot per thread allocation counter when the jvm provides one. with
+// forking on, each benchmark is measured in a jvm of its own, so its code is
+// not compiled against the profile of whatever ran before it
+public class Harness {
+  public interface Op {
+    // runs one operation and returns something derived from its result so
+    // the jit cannot remove the work
+    double run();
+  }
+
+  // results are folded in here so they are never dead code
+  public static volatile double sink;
+
+  private final int warmupIterations;
+  private final int measureIterations;
+  private final long iterationNanos;
+  private final String filter;
+  // command starting the benchmark program again, null to measure in this jvm
+  private List<String> forkCommand;
+  private int forks;
+  // name and params of the one benchmark a fork measures, null in the parent
+  private String only;
+
+  public Harness(int warmupIterations, int measureIterations, long iterationMillis, String filter) {
+    this.warmupIterations = warmupIterations;
+    this.measureIterations = measureIterations;
+    this.iterationNanos = iterationMillis * 1000000L;
+    this.filter = filter;
+  }
+
+  // measures every benchmark in forks new jvms, each running mainClass with
+  // args and the -only option naming the benchmark. the jvm options and
+  // class path of this jvm are passed on
+  public void fork(int forks, String mainClass, String[] args) {
+    this.forks = forks;
+    if (forks == 0) return;
+    forkCommand = new ArrayList<String>();
+    forkCommand.add(ProcessHandle.current().info().command().orElse("java"));
+    forkCommand.addAll(ManagementFactory.getRuntimeMXBean().getInputArguments());
+    forkCommand.add("-cp");
+    forkCommand.add(System.getProperty("java.class.path"));
+    forkCommand.add(mainClass);
+    for (String arg : args) forkCommand.add(arg);
+  }
+
+  // measures only the benchmark given as its name and params, as in a fork
+  public void setOnly(String only) {
+    this.only = only;
+  }
+
+  public static void printHeader() {
+    System.out.printf("%-32s %-22s %14s %14s %14s%n", "benchmark", "params", "ns/op", "+/- ns/op", "bytes/op");
+  }
+
+  public void run(String name, String params, Op op) {
+    if (filter != null && !name.contains(filter)) return;
+    if (only != null && !only.equals(name + " " + params)) return;
+    if (forkCommand != null) {
+      for (int f = 0; f < forks; f++) {
+        runFork(name + " " + params);
+      }
+      return;
+    }
+    // find an operation count that fills roughly one iteration
+    long ops = 1;
+    while (true) {
+      long start = System.nanoTime();
+      runOps(op, ops);
+      if (System.nanoTime() - start > iterationNanos / 10 || ops > (1L << 40)) break;
+      ops *= 2;
+    }
+    ops = Math.max(1, ops * 10);
+    for (int w = 0; w < warmupIterations; w++) {
+      runOps(op, ops);
+    }
+    double[] nanosPerOp = new double[measureIterations];
+    long allocated = 0;
+    for (int m = 0; m < measureIterations; m++) {
+      long bytes = allocatedBytes();
+      long start = System.nanoTime();
+      runOps(op, ops);
+      long elapsed = System.nanoTime() - start;
+      allocated += allocatedBytes() - bytes;
+      nanosPerOp[m] = (double) elapsed / ops;
+    }
+    double mean = 0.0;
+    for (double t : nanosPerOp) mean += t;
+    mean /= measureIterations;
+    double var = 0.0;
+    for (double t : nanosPerOp) var += (t - mean) * (t - mean);
+    double error = measureIterations > 1 ? Math.sqrt(var / (measureIterations - 1)) : 0.0;
+    String bytesPerOp = allocationSupported() ? String.format("%.1f", (double) allocated / (ops * measureIterations)) : "n/a";
+    System.out.printf("%-32s %-22s %14.1f %14.1f %14s%n", name, params, mean, error, bytesPerOp);
+  }
+
+  // the fork prints its own result line
+  private void runFork(String benchmark) {
+    List<String> command = new ArrayList<String>(forkCommand);
+    command.add("-only");
+    command.add(benchmark);
+    try {
+      int status = new ProcessBuilder(command).inheritIO().start().waitFor();
+      if (status != 0) System.out.println("ERROR: The fork measuring " + benchmark + " exited with " + status);
+    }
+    catch (IOException e) {
+      System.out.println("ERROR: " + e.getMessage());
+    }
+    catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+  }
+
+  private static void runOps(Op op, long ops) {
+    double acc = 0.0;
+    for (long i = 0; i < ops; i++) {
+      acc += op.run();
+    }
+    sink += acc;
+  }
+
+  private static boolean allocationSupported() {
+    ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+    return bean instanceof com.sun.management.ThreadMXBean
+      && ((com.sun.management.ThreadMXBean) bean).isThreadAllocatedMemorySupported();
+  }
+
+  private static long allocatedBytes() {
+    ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+    if (!(bean instanceof com.sun.management.ThreadMXBean)) return 0;
+    return ((com.sun.management.ThreadMXBean) bean).getThreadAllocatedBytes(Thread.currentThread().getId());
+  }
+}
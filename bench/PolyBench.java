@@ -0,0 +1,204 @@
+package bench;
+
+import contactutils.*;
+import dihedralutils.*;
+import fileutils.RRParser;
+import java.nio.ByteBuffer;
+import java.util.Random;
+
+// benchmarks for the geometry, scoring and file parsing hot paths. every
+// benchmark runs for each chain length and contact count given, e.g.
+//   $ make bench
+//   $ java bench.PolyBench -n 100,1000 -c 500,5000 -f Score
+// options: -n chain lengths, -c contact counts, -f only run benchmarks whose
+// name contains the text, -w warmup iterations, -i measurement iterations,
+// -t milliseconds per iteration, -forks jvms started per benchmark, where 0
+// measures every benchmark in this one
+public class PolyBench {
+  private static final String USAGE =
+    "usage: java bench.PolyBench [-n lengths] [-c contacts] [-f filter] [-w warmup] [-i iterations] [-t millis] [-forks jvms]";
+
+  public static void main(String[] args) {
+    int[] lengths = {100, 500, 2000};
+    int[] contacts = {500, 5000};
+    String filter = null;
+    int warmup = 5;
+    int measure = 5;
+    long millis = 200;
+    int forks = 1;
+    String only = null;
+    for (int a = 0; a < args.length; a += 2) {
+      // every option takes a value
+      if (a + 1 == args.length) {
+        System.err.println("missing value for option " + args[a]);
+        System.err.println(USAGE);
+        System.exit(2);
+      }
+      switch (args[a]) {
+        case "-n":
+          lengths = parseList(args[a+1]);
+          break;
+        case "-c":
+          contacts = parseList(args[a+1]);
+          break;
+        case "-f":
+          filter = args[a+1];
+          break;
+        case "-w":
+          warmup = Integer.parseInt(args[a+1]);
+          break;
+        case "-i":
+          measure = Integer.parseInt(args[a+1]);
+          break;
+        case "-t":
+          millis = Long.parseLong(args[a+1]);
+          break;
+        case "-forks":
+          forks = Integer.parseInt(args[a+1]);
+          break;
+        // the benchmark a fork was started to measure
+        case "-only":
+          only = args[a+1];
+          break;
+        default:
+          System.err.println("unknown option " + args[a]);
+          System.err.println(USAGE);
+          System.exit(2);
+      }
+    }
+    Harness h = new Harness(warmup, measure, millis, filter);
+    if (only != null) {
+      h.setOnly(only);
+    }
+    else {
+      h.fork(forks, PolyBench.class.getName(), args);
+      Harness.printHeader();
+    }
+    for (int n : lengths) {
+      runGeometry(h, n);
+      for (int c : contacts) {
+        runScoring(h, n, c);
+      }
+    }
+  }
+
+  private static int[] parseList(String s) {
+    String[] parts = s.split(",");
+    int[] values = new int[parts.length];
+    for (int i = 0; i < parts.length; i++) {
+      values[i] = Integer.parseInt(parts[i].trim());
+    }
+    return values;
+  }
+
+  // a compact, clash free chain - helices broken by a short coil every 25 residues
+  static Chain makeChain(int n, long seed) {
+    Random r = new Random(seed);
+    Chain chain = new Chain(n);
+    for (int i = 0; i < n; i++) {
+      boolean isHelix = i % 25 < 20;
+      chain.theta[i] = Math.toRadians(isHelix ? 89 + r.nextDouble() * 4 : 110);
+      chain.tao[i] = Math.toRadians(isHelix ? 50 + r.nextDouble() * 4 : -150);
+    }
+    chain.anglesToCarts();
+    return chain;
+  }
+
+  // .rr text with the given number of contacts between random residue pairs
+  static byte[] makeRR(Chain chain, int contacts, long seed) {
+    Random r = new Random(seed);
+    StringBuilder sb = new StringBuilder();
+    int n = chain.length;
+    for (int k = 0; k < contacts; k++) {
+      int i = r.nextInt(n - 1);
+      int j = i + 1 + r.nextInt(n - 1 - i);
+      sb.append(i + 1).append(' ').append(j + 1).append(" 0 8 ");
+      sb.append(String.format("%.3f", 4.0 + r.nextDouble() * 6.0)).append('\n');
+    }
+    return sb.toString().getBytes();
+  }
+
+  private static void runGeometry(Harness h, int n) {
+    String params = "n=" + n;
+    final Chain chain = makeChain(n, 1);
+    final Angular[] angles = chain.toAngles();
+    final Cartesian[] carts = chain.toCarts();
+    final Point a = carts[0].ca, b = carts[1].ca, c = carts[2].ca, d = new Point();
+    final Random r = new Random(2);
+
+    h.run("setCoordinate.point", params, () -> {
+      DihedralUtility.setCoordinate(a, b, c, d, 0.9, 1.6, DihedralUtility.BOND_LEN);
+      return d.x;
+    });
+    h.run("setCoordinate.array", params, () -> {
+      DihedralUtility.setCoordinate(chain.x, chain.y, chain.z, 3, 0.9, 1.6, DihedralUtility.BOND_LEN);
+      return chain.x[3];
+    });
+    h.run("angles2Carts", params, () -> DihedralUtility.angles2Carts(angles)[n-1].ca.x);
+    h.run("carts2Angles", params, () -> DihedralUtility.carts2Angles(carts)[n/2].tao);
+    h.run("Chain.anglesToCarts", params, () -> {
+      chain.anglesToCarts();
+      return chain.x[n-1];
+    });
+    h.run("Chain.cartsToAngles", params, () -> {
+      chain.cartsToAngles();
+      return chain.tao[n/2];
+    });
+    h.run("Chain.recomputeFrom.tail", params, () -> {
+      chain.recomputeFrom(n - 10);
+      return chain.x[n-1];
+    });
+    h.run("Chain.recomputeFrom.random", params, () -> {
+      chain.recomputeFrom(DihedralUtility.firstAffected(1 + r.nextInt(n - 3)));
+      return chain.x[n-1];
+    });
+    final ClashGrid grid = new ClashGrid();
+    h.run("ClashGrid.hasClash", params, () -> grid.hasClash(chain) ? 1 : 0);
+    final RayPicker picker = new RayPicker();
+    picker.build(chain, 0.9);
+    h.run("RayPicker.refit", params, () -> {
+      picker.refit(chain);
+      return picker.getLength();
+    });
+    // rays from a camera down the z axis at random nodes
+    h.run("RayPicker.pick", params, () -> {
+      int i = r.nextInt(n);
+      return picker.pick(chain, 0, 0, -1000, chain.x[i], chain.y[i], chain.z[i] + 1000);
+    });
+  }
+
+  private static void runScoring(Harness h, int n, int contacts) {
+    String params = "n=" + n + " c=" + contacts;
+    final Chain chain = makeChain(n, 1);
+    final byte[] rr = makeRR(chain, contacts, 3);
+    final RestraintSet restraints = RRParser.parse(ByteBuffer.wrap(rr), n);
+    final IncrementalScorer scorer = new IncrementalScorer(restraints);
+    scorer.reset(chain);
+    final Random r = new Random(4);
+
+    h.run("RRParser.parse", params, () -> RRParser.parse(ByteBuffer.wrap(rr), n).size);
+    h.run("ContactScore.getScore", params, () -> ContactScore.getScore(restraints, chain));
+    // restraints expecting a quarter to three quarters of their distance, as
+    // in a fold part way there, so the pieces of the score rule are hit at
+    // random as they are in play
+    final RestraintSet near = new RestraintSet(n);
+    for (int k = 0; k < restraints.size; k++) {
+      int i = restraints.i[k];
+      int j = restraints.j[k];
+      near.add(i, j, chain.getDistance(i, j) * (0.25 + 0.5 * r.nextDouble()));
+    }
+    final double[] distance = new double[near.size];
+    h.run("DistanceKernel.score", params, () -> DistanceKernel.get().score(chain, near, 0, near.size, distance, null));
+    h.run("IncrementalScorer.update", params, () -> {
+      int i = 1 + r.nextInt(n - 3);
+      chain.tao[i] += 1e-6;
+      int start = DihedralUtility.firstAffected(i);
+      chain.recomputeFrom(start);
+      return scorer.update(chain, start);
+    });
+    final FoldMinimizer minimizer = new FoldMinimizer(restraints);
+    final double[] dTheta = new double[n];
+    final double[] dTao = new double[n];
+    h.run("FoldMinimizer.getEnergy", params, () -> minimizer.getEnergy(chain, dTheta, dTao));
+  }
+}
@@ -0,0 +1,138 @@
+package contactutils;
+
+import dihedralutils.Chain;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+// scores large batches of candidate folds of one puzzle in parallel. the
+// restraints are only read so they are shared by every thread, and each
+// thread converts angles into its own scratch chain so scoring a candidate
+// allocates nothing
+public class BatchEvaluator {
+  // candidates scored by one task before it stops splitting
+  private static final int THRESHOLD = 8;
+
+  public static class Report {
+    // score of each candidate, NaN if two of its nodes clash
+    public final double[] scores;
+    public final long nanos;
+
+    private Report(double[] scores, long nanos) {
+      this.scores = scores;
+      this.nanos = nanos;
+    }
+
+    public boolean isClash(int candidate) {
+      return Double.isNaN(scores[candidate]);
+    }
+
+    // candidates scored per second
+    public double getThroughput() {
+      return scores.length / (nanos / 1e9);
+    }
+  }
+
+  private static class Scratch {
+    final Chain chain;
+    final ClashGrid clashGrid = new ClashGrid();
+
+    Scratch(int residues) {
+      this.chain = new Chain(residues);
+    }
+  }
+
+  public final RestraintSet restraints;
+  private final ForkJoinPool pool;
+  private final ThreadLocal<Scratch> scratch;
+
+  public BatchEvaluator(RestraintSet restraints) {
+    this(restraints, ForkJoinPool.commonPool());
+  }
+
+  public BatchEvaluator(RestraintSet restraints, ForkJoinPool pool) {
+    if (restraints.rowStart == null) restraints.sort();
+    this.restraints = restraints;
+    this.pool = pool;
+    final int residues = restraints.residues;
+    this.scratch = ThreadLocal.withInitial(() -> new Scratch(residues));
+  }
+
+  // scores candidate c given its planar angles theta[c] and dihedral angles tao[c]
+  public Report evaluate(double[][] theta, double[][] tao) {
+    if (theta.length != tao.length) {
+      throw new IllegalArgumentException("Got " + theta.length + " theta and " + tao.length + " tao arrays");
+    }
+    for (int c = 0; c < theta.length; c++) {
+      if (theta[c].length != restraints.residues || tao[c].length != restraints.residues) {
+        throw new IllegalArgumentException("Candidate " + c + " does not have " + restraints.residues + " angles");
+      }
+    }
+    double[] scores = new double[theta.length];
+    long start = System.nanoTime();
+    pool.invoke(new Task(theta, tao, null, scores, 0, theta.length));
+    return new Report(scores, System.nanoTime() - start);
+  }
+
+  // scores candidates that are already placed, as read from a .pdb, by
+  // their coordinates rather than rebuilding them from their angles
+  public Report evaluate(Chain[] folds) {
+    for (int c = 0; c < folds.length; c++) {
+      if (folds[c].length != restraints.residues) {
+        throw new IllegalArgumentException("Candidate " + c + " does not have " + restraints.residues + " residues");
+      }
+    }
+    double[] scores = new double[folds.length];
+    long start = System.nanoTime();
+    pool.invoke(new Task(null, null, folds, scores, 0, folds.length));
+    return new Report(scores, System.nanoTime() - start);
+  }
+
+  // scores one candidate on the calling thread
+  public double evaluate(double[] theta, double[] tao) {
+    Scratch s = scratch.get();
+    System.arraycopy(theta, 0, s.chain.theta, 0, s.chain.length);
+    System.arraycopy(tao, 0, s.chain.tao, 0, s.chain.length);
+    s.chain.anglesToCarts();
+    if (s.clashGrid.hasClash(s.chain)) return Double.NaN;
+    return ContactScore.getScore(restraints, s.chain);
+  }
+
+  // scores one placed candidate on the calling thread
+  public double evaluate(Chain fold) {
+    if (scratch.get().clashGrid.hasClash(fold)) return Double.NaN;
+    return ContactScore.getScore(restraints, fold);
+  }
+
+  // scores the candidates lo..hi-1 of either the angles or the placed folds
+  private class Task extends RecursiveAction {
+    private static final long serialVersionUID = 1L;
+
+    final double[][] theta;
+    final double[][] tao;
+    final Chain[] folds;
+    final double[] scores;
+    final int lo;
+    final int hi;
+
+    Task(double[][] theta, double[][] tao, Chain[] folds, double[] scores, int lo, int hi) {
+      this.theta = theta;
+      this.tao = tao;
+      this.folds = folds;
+      this.scores = scores;
+      this.lo = lo;
+      this.hi = hi;
+    }
+
+    @Override
+    protected void compute() {
+      if (hi - lo <= THRESHOLD) {
+        for (int c = lo; c < hi; c++) {
+          scores[c] = folds != null ? evaluate(folds[c]) : evaluate(theta[c], tao[c]);
+        }
+        return;
+      }
+      int mid = (lo + hi) >>> 1;
+      invokeAll(new Task(theta, tao, folds, scores, lo, mid), new Task(theta, tao, folds, scores, mid, hi));
+    }
+  }
+}
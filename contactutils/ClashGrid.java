@@ -0,0 +1,110 @@
+package contactutils;
+
+import dihedralutils.Chain;
+import java.util.Arrays;
+
+// uniform cell list over node coordinates for finding nodes closer than the
+// clash distance. cells are one clash distance wide so any clashing pair lies
+// in the same or a neighbouring cell, and cells are hashed into a table sized
+// to the chain so long extended chains do not need a huge dense grid. all
+// buffers are kept between calls so a check on every slider tick is free of
+// allocation once the grid has seen a chain of that length
+public class ClashGrid {
+  // pairs closer than this are found - the clash distance unless given
+  private final double cell;
+
+  // first node in each hash bucket, -1 if empty
+  private int[] head = new int[0];
+  // next node in the same bucket, -1 at the end
+  private int[] next = new int[0];
+  private int mask;
+  // node that last visited each bucket, so a bucket shared by two
+  // neighbouring cells is only walked once per node
+  private int[] visitedBy = new int[0];
+
+  public ClashGrid() {
+    this(ContactScore.CLASH_DIST);
+  }
+
+  // a grid finding pairs closer than distance instead of the clash distance
+  public ClashGrid(double distance) {
+    this.cell = distance;
+  }
+
+  // clashing pairs found by the last call to findClashes, i > j
+  public int clashCount;
+  public int[] clashI = new int[16];
+  public int[] clashJ = new int[16];
+
+  // true if any two nodes are closer than the clash distance
+  public boolean hasClash(Chain chain) {
+    return search(chain, true) > 0;
+  }
+
+  // finds every clashing pair and returns how many there are
+  public int findClashes(Chain chain) {
+    return search(chain, false);
+  }
+
+  // inserts nodes in order and checks each against the nodes already in the
+  // neighbouring cells, so every pair is looked at once
+  private int search(Chain chain, boolean stopAtFirst) {
+    int n = chain.length;
+    resize(n);
+    Arrays.fill(head, -1);
+    Arrays.fill(visitedBy, -1);
+    clashCount = 0;
+    double min = cell * cell;
+    for (int i = 0; i < n; i++) {
+      int cx = (int) Math.floor(chain.x[i] / cell);
+      int cy = (int) Math.floor(chain.y[i] / cell);
+      int cz = (int) Math.floor(chain.z[i] / cell);
+      for (int dx = -1; dx <= 1; dx++) {
+        for (int dy = -1; dy <= 1; dy++) {
+          for (int dz = -1; dz <= 1; dz++) {
+            int bucket = hash(cx + dx, cy + dy, cz + dz);
+            if (visitedBy[bucket] == i) continue;
+            visitedBy[bucket] = i;
+            for (int j = head[bucket]; j != -1; j = next[j]) {
+              double ddx = chain.x[i] - chain.x[j];
+              double ddy = chain.y[i] - chain.y[j];
+              double ddz = chain.z[i] - chain.z[j];
+              if (ddx * ddx + ddy * ddy + ddz * ddz < min) {
+                addClash(i, j);
+                if (stopAtFirst) return clashCount;
+              }
+            }
+          }
+        }
+      }
+      int bucket = hash(cx, cy, cz);
+      next[i] = head[bucket];
+      head[bucket] = i;
+    }
+    return clashCount;
+  }
+
+  private int hash(int x, int y, int z) {
+    return ((x * 73856093) ^ (y * 19349663) ^ (z * 83492791)) & mask;
+  }
+
+  private void addClash(int i, int j) {
+    if (clashCount == clashI.length) {
+      clashI = Arrays.copyOf(clashI, 2 * clashCount);
+      clashJ = Arrays.copyOf(clashJ, 2 * clashCount);
+    }
+    clashI[clashCount] = i;
+    clashJ[clashCount] = j;
+    clashCount++;
+  }
+
+  private void resize(int n) {
+    if (next.length == n) return;
+    // power of two table at least twice the number of nodes
+    int buckets = Integer.highestOneBit(Math.max(2 * n - 1, 1)) << 1;
+    head = new int[buckets];
+    visitedBy = new int[buckets];
+    mask = buckets - 1;
+    next = new int[n];
+  }
+}
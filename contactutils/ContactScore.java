@@ -0,0 +1,25 @@
+package contactutils;
+
+import dihedralutils.Chain;
+
+public class ContactScore {
+  // nodes closer than this are overlapping
+  public static final double CLASH_DIST = 3.7;
+
+  // score earned by one restraint given the expected and actual distance
+  public static double getPairScore(double expected, double actual) {
+    double offBy = actual - expected;
+    if (offBy < expected) {
+      return expected - offBy;
+    }
+    else if (offBy / 10.0 < expected) {
+      return Math.abs(expected - offBy) / 10;
+    }
+    return 0.0;
+  }
+
+  // total score of a chain - only the listed restraints are visited
+  public static double getScore(RestraintSet restraints, Chain chain) {
+    return DistanceKernel.get().score(chain, restraints, 0, restraints.size, null, null);
+  }
+}
@@ -0,0 +1,42 @@
+package contactutils;
+
+import dihedralutils.Chain;
+
+// finds the distance and score of a run of restraints in one pass over the
+// coordinate arrays. every scorer shares the one instance from get, so a
+// faster kernel only has to be swapped in here
+public class DistanceKernel {
+  public static final DistanceKernel SCALAR = new DistanceKernel();
+
+  // the kernel every scorer uses
+  public static DistanceKernel get() {
+    return SCALAR;
+  }
+
+  public String getName() {
+    return "scalar";
+  }
+
+  // scores restraints from..to-1 of the chain and returns their sum. the
+  // distance and score of each restraint k are kept in distance[k] and
+  // contribution[k] unless either is null
+  public double score(Chain chain, RestraintSet restraints, int from, int to, double[] distance, double[] contribution) {
+    double[] x = chain.x;
+    double[] y = chain.y;
+    double[] z = chain.z;
+    int[] ri = restraints.i;
+    int[] rj = restraints.j;
+    double score = 0.0;
+    for (int k = from; k < to; k++) {
+      double dx = x[ri[k]] - x[rj[k]];
+      double dy = y[ri[k]] - y[rj[k]];
+      double dz = z[ri[k]] - z[rj[k]];
+      double d = Math.sqrt(dx * dx + dy * dy + dz * dz);
+      double c = ContactScore.getPairScore(restraints.dist[k], d);
+      if (distance != null) distance[k] = d;
+      if (contribution != null) contribution[k] = c;
+      score += c;
+    }
+    return score;
+  }
+}
@@ -0,0 +1,313 @@
+package contactutils;
+
+import dihedralutils.Chain;
+import java.util.Arrays;
+
+// snaps a fold to the nearest optimum of its restraint score by L-BFGS over
+// every theta and tao angle. the function minimized is the negated game score
+// plus a soft penalty on pairs of nodes nearing the clash distance, and no
+// step is taken that would leave two nodes clashing. the gradient with
+// respect to every angle is found in one sweep - each angle turns the nodes
+// after it as one rigid body about an axis, so its derivative is the torque
+// about that axis of the forces on those nodes, and sums of the forces and
+// torques from the end of the chain give every derivative at once
+public class FoldMinimizer {
+  // pairs closer than this are pushed apart, ahead of the clash distance
+  private static final double MARGIN = 0.5;
+  private static final double PENALTY = 100.0;
+  // corrections kept for the inverse hessian estimate
+  private static final int MEMORY = 7;
+  public static final int MAX_ITERATIONS = 1000;
+  // largest change of any angle in one step, in radians
+  private static final double MAX_STEP = 0.5;
+  private static final double ARMIJO = 1e-4;
+  private static final int MAX_BACKTRACKS = 30;
+  private static final double TOLERANCE = 1e-9;
+  // planar angles stay inside (0, pi) as they do on the sliders
+  private static final double EPS = 1e-3;
+
+  public final RestraintSet restraints;
+  private final ClashGrid clashGrid = new ClashGrid();
+  private final ClashGrid nearGrid = new ClashGrid(ContactScore.CLASH_DIST + MARGIN);
+
+  // results of the last call to minimize
+  public int iterations;
+  public double startScore;
+  public double score;
+
+  // gradient of the energy with respect to the coordinates of every node
+  private double[] gx = new double[0];
+  private double[] gy = new double[0];
+  private double[] gz = new double[0];
+
+  public FoldMinimizer(RestraintSet restraints) {
+    this.restraints = restraints;
+  }
+
+  // moves the angles of chain to the best scoring fold found on the way down
+  // to the nearest optimum, leaving its coordinates placed. a chain that
+  // starts clash free stays clash free. returns true if the score went up
+  public boolean minimize(Chain chain) {
+    int n = chain.length;
+    iterations = 0;
+    chain.anglesToCarts();
+    startScore = ContactScore.getScore(restraints, chain);
+    score = startScore;
+    // nodes 1..n-2 have a planar angle and 1..n-3 a dihedral one
+    int planar = Math.max(0, n - 2);
+    int m = planar + Math.max(0, n - 3);
+    if (m == 0) return false;
+    boolean isClashFree = !clashGrid.hasClash(chain);
+    double[] dTheta = new double[n];
+    double[] dTao = new double[n];
+    double[] x = new double[m];
+    double[] g = new double[m];
+    double[] nextX = new double[m];
+    double[] nextG = new double[m];
+    double[] d = new double[m];
+    double[][] s = new double[MEMORY][m];
+    double[][] y = new double[MEMORY][m];
+    double[] rho = new double[MEMORY];
+    double[] alpha = new double[MEMORY];
+    double[] bestTheta = chain.theta.clone();
+    double[] bestTao = chain.tao.clone();
+    int stored = 0;
+    int newest = -1;
+
+    pack(chain, x, planar);
+    double e = getEnergy(chain, dTheta, dTao);
+    packGradient(dTheta, dTao, g, planar, n);
+    for (iterations = 0; iterations < MAX_ITERATIONS; iterations++) {
+      // two loop recursion for d = -H g
+      for (int k = 0; k < m; k++) d[k] = -g[k];
+      for (int c = 0, h = newest; c < stored; c++, h = (h + MEMORY - 1) % MEMORY) {
+        alpha[h] = rho[h] * dot(s[h], d);
+        axpy(-alpha[h], y[h], d);
+      }
+      if (stored > 0) {
+        double scale = dot(s[newest], y[newest]) / dot(y[newest], y[newest]);
+        for (int k = 0; k < m; k++) d[k] *= scale;
+      }
+      for (int c = 0, h = (newest + MEMORY - stored + 1) % MEMORY; c < stored; c++, h = (h + 1) % MEMORY) {
+        double beta = rho[h] * dot(y[h], d);
+        axpy(alpha[h] - beta, s[h], d);
+      }
+      double slope = dot(g, d);
+      if (!(slope < 0)) {
+        // not a descent direction - start again from steepest descent
+        stored = 0;
+        for (int k = 0; k < m; k++) d[k] = -g[k];
+        slope = dot(g, d);
+        if (!(slope < 0)) break;
+      }
+      double largest = 0;
+      for (int k = 0; k < m; k++) largest = Math.max(largest, Math.abs(d[k]));
+      double step = Math.min(1.0, MAX_STEP / largest);
+      // backtrack until the energy drops enough without any clash
+      boolean isAccepted = false;
+      double nextE = e;
+      for (int b = 0; b < MAX_BACKTRACKS; b++) {
+        for (int k = 0; k < m; k++) nextX[k] = x[k] + step * d[k];
+        unpack(chain, nextX, planar);
+        chain.anglesToCarts();
+        if (!isClashFree || !clashGrid.hasClash(chain)) {
+          nextE = getEnergy(chain, dTheta, dTao);
+          if (nextE <= e + ARMIJO * step * slope) {
+            isAccepted = true;
+            break;
+          }
+        }
+        step *= 0.5;
+      }
+      if (!isAccepted) break;
+      packGradient(dTheta, dTao, nextG, planar, n);
+      // planar angles may have been clamped, so the step is measured again
+      pack(chain, nextX, planar);
+      newest = (newest + 1) % MEMORY;
+      double sy = 0;
+      for (int k = 0; k < m; k++) {
+        s[newest][k] = nextX[k] - x[k];
+        y[newest][k] = nextG[k] - g[k];
+        sy += s[newest][k] * y[newest][k];
+      }
+      // only keep pairs that keep the estimate positive definite
+      if (sy > 1e-12) {
+        rho[newest] = 1.0 / sy;
+        stored = Math.min(stored + 1, MEMORY);
+      }
+      else {
+        // the slot taken may have held the oldest pair
+        newest = (newest + MEMORY - 1) % MEMORY;
+        stored = Math.min(stored, MEMORY - 1);
+      }
+      double drop = e - nextE;
+      System.arraycopy(nextX, 0, x, 0, m);
+      System.arraycopy(nextG, 0, g, 0, m);
+      e = nextE;
+      // the penalty may trade score for room between nodes, so the best
+      // scoring fold on the way down is the one kept
+      double next = ContactScore.getScore(restraints, chain);
+      if (next > score) {
+        score = next;
+        System.arraycopy(chain.theta, 0, bestTheta, 0, n);
+        System.arraycopy(chain.tao, 0, bestTao, 0, n);
+      }
+      if (drop <= TOLERANCE * (1 + Math.abs(e))) break;
+    }
+    System.arraycopy(bestTheta, 0, chain.theta, 0, n);
+    // dihedral angles are free to wind past pi while searching
+    for (int k = 1; k <= n - 3; k++) {
+      chain.tao[k] = Math.IEEEremainder(bestTao[k], 2 * Math.PI);
+    }
+    chain.anglesToCarts();
+    return score > startScore;
+  }
+
+  // energy of the placed chain - the negated score plus the clash penalty -
+  // and its derivative with respect to the theta and tao of every node
+  public double getEnergy(Chain chain, double[] dTheta, double[] dTao) {
+    int n = chain.length;
+    if (gx.length != n) {
+      gx = new double[n];
+      gy = new double[n];
+      gz = new double[n];
+    }
+    Arrays.fill(gx, 0.0);
+    Arrays.fill(gy, 0.0);
+    Arrays.fill(gz, 0.0);
+    double[] px = chain.x;
+    double[] py = chain.y;
+    double[] pz = chain.z;
+    double energy = 0.0;
+    for (int k = 0; k < restraints.size; k++) {
+      int i = restraints.i[k];
+      int j = restraints.j[k];
+      double expected = restraints.dist[k];
+      double dx = px[i] - px[j];
+      double dy = py[i] - py[j];
+      double dz = pz[i] - pz[j];
+      double dist = Math.sqrt(dx * dx + dy * dy + dz * dz);
+      energy -= ContactScore.getPairScore(expected, dist);
+      // slope of the pair score in each of its pieces
+      double offBy = dist - expected;
+      double slope;
+      if (offBy < expected) slope = -1.0;
+      else if (offBy / 10.0 < expected) slope = 0.1;
+      else slope = 0.0;
+      if (slope == 0.0 || dist == 0.0) continue;
+      addGradient(i, j, slope / dist, dx, dy, dz);
+    }
+    double reach = ContactScore.CLASH_DIST + MARGIN;
+    int pairs = nearGrid.findClashes(chain);
+    for (int c = 0; c < pairs; c++) {
+      int i = nearGrid.clashI[c];
+      int j = nearGrid.clashJ[c];
+      // bonded nodes are always a bond length apart
+      if (Math.abs(i - j) == 1) continue;
+      double dx = px[i] - px[j];
+      double dy = py[i] - py[j];
+      double dz = pz[i] - pz[j];
+      double dist = Math.sqrt(dx * dx + dy * dy + dz * dz);
+      double gap = reach - dist;
+      energy += PENALTY * gap * gap;
+      if (dist == 0.0) continue;
+      addGradient(i, j, 2 * PENALTY * gap / dist, dx, dy, dz);
+    }
+
+    Arrays.fill(dTheta, 0.0);
+    Arrays.fill(dTao, 0.0);
+    // sums of the gradients g and of the torques r x g of nodes m..n-1
+    double fx = 0, fy = 0, fz = 0;
+    double tx = 0, ty = 0, tz = 0;
+    for (int m = n - 1; m >= 1; m--) {
+      fx += gx[m];
+      fy += gy[m];
+      fz += gz[m];
+      tx += py[m] * gz[m] - pz[m] * gy[m];
+      ty += pz[m] * gx[m] - px[m] * gz[m];
+      tz += px[m] * gy[m] - py[m] * gx[m];
+      // the theta of node m-1 bends nodes m onwards about the normal of the
+      // plane of nodes m-2, m-1 and m
+      int k = m - 1;
+      if (k >= 1 && k <= n - 2) {
+        double vx = px[k] - px[k-1];
+        double vy = py[k] - py[k-1];
+        double vz = pz[k] - pz[k-1];
+        double bx = px[k+1] - px[k];
+        double by = py[k+1] - py[k];
+        double bz = pz[k+1] - pz[k];
+        double ax = by * vz - bz * vy;
+        double ay = bz * vx - bx * vz;
+        double az = bx * vy - by * vx;
+        dTheta[k] = getTorque(ax, ay, az, px[k], py[k], pz[k], fx, fy, fz, tx, ty, tz);
+      }
+      // the tao of node m-2 turns nodes m onwards about the bond from m-2
+      // to m-1
+      k = m - 2;
+      if (k >= 1 && k <= n - 3) {
+        dTao[k] = getTorque(px[k+1] - px[k], py[k+1] - py[k], pz[k+1] - pz[k],
+          px[k+1], py[k+1], pz[k+1], fx, fy, fz, tx, ty, tz);
+      }
+      // node 2 is placed from the virtual N terminus with the tao of node 1,
+      // so that angle also turns nodes 2 onwards about the first bond
+      if (m == 2 && n > 3) {
+        dTao[1] += getTorque(px[1] - px[0], py[1] - py[0], pz[1] - pz[0],
+          px[1], py[1], pz[1], fx, fy, fz, tx, ty, tz);
+      }
+    }
+    return energy;
+  }
+
+  // adds the gradient of a pair term whose derivative with respect to r_i is
+  // -scale * (r_i - r_j)
+  private void addGradient(int i, int j, double scale, double dx, double dy, double dz) {
+    gx[i] -= scale * dx;
+    gy[i] -= scale * dy;
+    gz[i] -= scale * dz;
+    gx[j] += scale * dx;
+    gy[j] += scale * dy;
+    gz[j] += scale * dz;
+  }
+
+  // derivative of the energy as the nodes with gradient sum f and torque sum
+  // t turn about the axis a through point p
+  private static double getTorque(double ax, double ay, double az, double ox, double oy, double oz,
+      double fx, double fy, double fz, double tx, double ty, double tz) {
+    double norm = Math.sqrt(ax * ax + ay * ay + az * az);
+    if (norm == 0.0) return 0.0;
+    // torque about p is t - p x f
+    double qx = tx - (oy * fz - oz * fy);
+    double qy = ty - (oz * fx - ox * fz);
+    double qz = tz - (ox * fy - oy * fx);
+    return (ax * qx + ay * qy + az * qz) / norm;
+  }
+
+  // free angles of the chain as one vector - planar angles of nodes 1..n-2
+  // then dihedral angles of nodes 1..n-3
+  private static void pack(Chain chain, double[] x, int planar) {
+    System.arraycopy(chain.theta, 1, x, 0, planar);
+    System.arraycopy(chain.tao, 1, x, planar, x.length - planar);
+  }
+
+  private static void unpack(Chain chain, double[] x, int planar) {
+    for (int k = 0; k < planar; k++) {
+      chain.theta[k+1] = Math.max(EPS, Math.min(Math.PI - EPS, x[k]));
+    }
+    System.arraycopy(x, planar, chain.tao, 1, x.length - planar);
+  }
+
+  private static void packGradient(double[] dTheta, double[] dTao, double[] g, int planar, int n) {
+    System.arraycopy(dTheta, 1, g, 0, planar);
+    System.arraycopy(dTao, 1, g, planar, g.length - planar);
+  }
+
+  private static double dot(double[] a, double[] b) {
+    double sum = 0;
+    for (int k = 0; k < a.length; k++) sum += a[k] * b[k];
+    return sum;
+  }
+
+  private static void axpy(double a, double[] x, double[] y) {
+    for (int k = 0; k < x.length; k++) y[k] += a * x[k];
+  }
+}
@@ -0,0 +1,80 @@
+package contactutils;
+
+import dihedralutils.Chain;
+
+// keeps the score of a chain up to date as its angles are edited. an edit
+// moves every node from some index onwards as one rigid body, so only
+// restraints with one residue on each side of that index change distance.
+// the score of every restraint is kept so each update only visits those
+public class IncrementalScorer {
+  public final RestraintSet restraints;
+  // current distance and score of every restraint
+  public final double[] distance;
+  public final double[] contribution;
+  // restraints grouped by second residue - restraints with second residue r
+  // are colIndex[colStart[r]]..colIndex[colStart[r+1]-1]
+  private final int[] colStart;
+  private final int[] colIndex;
+  private double score;
+
+  public IncrementalScorer(RestraintSet restraints) {
+    if (restraints.rowStart == null) restraints.sort();
+    this.restraints = restraints;
+    this.distance = new double[restraints.size];
+    this.contribution = new double[restraints.size];
+    int n = restraints.residues;
+    colStart = new int[n + 1];
+    colIndex = new int[restraints.size];
+    for (int k = 0; k < restraints.size; k++) {
+      colStart[restraints.j[k] + 1]++;
+    }
+    for (int r = 0; r < n; r++) {
+      colStart[r + 1] += colStart[r];
+    }
+    int[] next = new int[n];
+    System.arraycopy(colStart, 0, next, 0, n);
+    for (int k = 0; k < restraints.size; k++) {
+      colIndex[next[restraints.j[k]]++] = k;
+    }
+  }
+
+  public double getScore() {
+    return score;
+  }
+
+  // scores every restraint from scratch
+  public double reset(Chain chain) {
+    score = DistanceKernel.get().score(chain, restraints, 0, restraints.size, distance, contribution);
+    return score;
+  }
+
+  // rescores the restraints that straddle start after nodes start..n-1 moved
+  // together. walks whichever side of start has fewer restraints
+  public double update(Chain chain, int start) {
+    if (start <= 0) return reset(chain);
+    int n = restraints.residues;
+    if (start >= n) return score;
+    int before = restraints.rowStart[start];
+    int after = restraints.size - colStart[start];
+    if (before <= after) {
+      for (int k = 0; k < before; k++) {
+        if (restraints.j[k] >= start) rescore(chain, k);
+      }
+    }
+    else {
+      for (int c = colStart[start]; c < restraints.size; c++) {
+        int k = colIndex[c];
+        if (restraints.i[k] < start) rescore(chain, k);
+      }
+    }
+    return score;
+  }
+
+  private void rescore(Chain chain, int k) {
+    double d = chain.getDistance(restraints.i[k], restraints.j[k]);
+    double c = ContactScore.getPairScore(restraints.dist[k], d);
+    score += c - contribution[k];
+    distance[k] = d;
+    contribution[k] = c;
+  }
+}
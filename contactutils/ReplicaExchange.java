@@ -0,0 +1,287 @@
+package contactutils;
+
+import dihedralutils.Chain;
+import dihedralutils.DihedralUtility;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ForkJoinPool;
+import java.util.function.Consumer;
+
+// folds a chain against its restraints by parallel tempering. each replica
+// is a copy of the chain doing metropolis moves of single angles at its own
+// temperature, all of them at once on their own threads. between rounds of
+// moves neighbouring temperatures swap replicas, so folds found while hot can
+// cool and settle. a move is scored incrementally with the same rule as the
+// game, and a fold with two nodes closer than the clash distance is never
+// accepted. the best fold found is passed to a consumer as it improves
+public class ReplicaExchange {
+  // moves each replica makes between swaps
+  private static final int MOVES_PER_ROUND = 500;
+  // temperatures of the coldest and hottest replicas, in score units
+  public static final double MIN_TEMPERATURE = 0.5;
+  public static final double MAX_TEMPERATURE = 5.0;
+  // share of moves each replica aims to accept, by adapting its step size
+  private static final double TARGET_ACCEPTANCE = 0.3;
+  private static final double MIN_STEP = 1e-3;
+  private static final double MAX_STEP = Math.PI;
+  // the best fold is published at most this often while it keeps improving
+  private static final long PUBLISH_NANOS = 100_000_000L;
+  // planar angles stay inside (0, pi) as they do on the sliders
+  private static final double EPS = 1e-3;
+
+  public final RestraintSet restraints;
+  private final Consumer<Chain> publish;
+  private final Replica[] replicas;
+  // temperature and step size of each rung of the ladder, coldest first.
+  // replicas[k] is the replica currently at rung k
+  private final double[] temperature;
+  private final double[] step;
+  private final Random random;
+  private volatile boolean isStopped;
+
+  // best fold found so far, guarded by this
+  private Chain best;
+  private double bestScore = Double.NEGATIVE_INFINITY;
+  private long rounds;
+  private long swaps;
+  private long swapAttempts;
+
+  // one replica per core, at least two so there is something to swap with
+  public ReplicaExchange(RestraintSet restraints, Chain start, Consumer<Chain> publish) {
+    this(restraints, start, publish, Math.max(2, Runtime.getRuntime().availableProcessors()), System.nanoTime());
+  }
+
+  public ReplicaExchange(RestraintSet restraints, Chain start, Consumer<Chain> publish, int replicaCount, long seed) {
+    if (start.length != restraints.residues) {
+      throw new IllegalArgumentException("Chain has " + start.length + " residues but the restraints are for " + restraints.residues);
+    }
+    if (replicaCount < 1) {
+      throw new IllegalArgumentException("Need at least one replica");
+    }
+    if (restraints.rowStart == null) restraints.sort();
+    this.restraints = restraints;
+    this.publish = publish;
+    this.random = new Random(seed);
+    replicas = new Replica[replicaCount];
+    temperature = new double[replicaCount];
+    step = new double[replicaCount];
+    for (int k = 0; k < replicaCount; k++) {
+      // geometric ladder so neighbouring rungs overlap about as well at
+      // every temperature
+      double f = replicaCount == 1 ? 0.0 : (double) k / (replicaCount - 1);
+      temperature[k] = MIN_TEMPERATURE * Math.pow(MAX_TEMPERATURE / MIN_TEMPERATURE, f);
+      step[k] = 0.1 + 0.4 * f;
+      replicas[k] = new Replica(start, seed + 31 * (k + 1));
+    }
+  }
+
+  // searches on a background thread until stop is called
+  public void start() {
+    Thread t = new Thread(() -> run(Long.MAX_VALUE), "auto-fold");
+    t.setDaemon(true);
+    t.start();
+  }
+
+  public void stop() {
+    isStopped = true;
+  }
+
+  // searches on the calling thread for the given time, or until stop is
+  // called, and returns the best fold found - null if every fold clashed
+  public Chain run(long millis) {
+    long deadline = System.nanoTime() + Math.min(millis, Long.MAX_VALUE / 2_000_000L) * 1_000_000L;
+    ForkJoinPool pool = new ForkJoinPool(replicas.length);
+    List<Callable<Void>> tasks = new ArrayList<Callable<Void>>();
+    for (Replica r : replicas) tasks.add(r);
+    long lastPublish = 0;
+    boolean isUnpublished = false;
+    try {
+      while (!isStopped && System.nanoTime() - deadline < 0) {
+        for (int k = 0; k < replicas.length; k++) {
+          replicas[k].temperature = temperature[k];
+          replicas[k].step = step[k];
+        }
+        pool.invokeAll(tasks);
+        for (int k = 0; k < replicas.length; k++) {
+          // widen the steps of rungs that accept too much, narrow the others
+          double rate = (double) replicas[k].accepted / MOVES_PER_ROUND;
+          step[k] *= rate > TARGET_ACCEPTANCE ? 1.1 : 0.9;
+          step[k] = Math.max(MIN_STEP, Math.min(MAX_STEP, step[k]));
+        }
+        exchange();
+        if (collectBest()) isUnpublished = true;
+        synchronized (this) {
+          rounds++;
+        }
+        long now = System.nanoTime();
+        if (isUnpublished && now - lastPublish >= PUBLISH_NANOS) {
+          publishBest();
+          lastPublish = now;
+          isUnpublished = false;
+        }
+      }
+      if (isUnpublished) publishBest();
+    }
+    finally {
+      pool.shutdownNow();
+    }
+    return getBest();
+  }
+
+  // copy of the best fold found so far, null if every fold clashed
+  public synchronized Chain getBest() {
+    return best == null ? null : best.copy();
+  }
+
+  public synchronized double getBestScore() {
+    return bestScore;
+  }
+
+  public synchronized long getRounds() {
+    return rounds;
+  }
+
+  // share of attempted swaps between neighbouring rungs that were accepted
+  public synchronized double getSwapRate() {
+    return swapAttempts == 0 ? 0.0 : (double) swaps / swapAttempts;
+  }
+
+  // offers each replica to the rung above, alternating between even and odd
+  // pairs each round. a swap is accepted with the metropolis probability of
+  // both replicas taking the other's temperature
+  private void exchange() {
+    int attempts = 0;
+    int accepted = 0;
+    for (int k = (int) (rounds & 1); k + 1 < replicas.length; k += 2) {
+      Replica cold = replicas[k];
+      Replica hot = replicas[k+1];
+      double delta = (1.0 / temperature[k] - 1.0 / temperature[k+1]) * (hot.score - cold.score);
+      attempts++;
+      // a clashing replica is never moved towards the cold end
+      if (hot.isClash && !cold.isClash) continue;
+      if (delta >= 0 || random.nextDouble() < Math.exp(delta)) {
+        replicas[k] = hot;
+        replicas[k+1] = cold;
+        accepted++;
+      }
+    }
+    synchronized (this) {
+      swapAttempts += attempts;
+      swaps += accepted;
+    }
+  }
+
+  // takes the best fold of any replica if it beats the best so far
+  private boolean collectBest() {
+    Replica top = null;
+    for (Replica r : replicas) {
+      if (r.bestScore > Double.NEGATIVE_INFINITY && (top == null || r.bestScore > top.bestScore)) top = r;
+    }
+    synchronized (this) {
+      if (top == null || top.bestScore <= bestScore) return false;
+      if (best == null) best = new Chain(top.chain.length);
+      best.copyFrom(top.chain);
+      System.arraycopy(top.bestTheta, 0, best.theta, 0, best.length);
+      System.arraycopy(top.bestTao, 0, best.tao, 0, best.length);
+      best.anglesToCarts();
+      bestScore = top.bestScore;
+      return true;
+    }
+  }
+
+  private void publishBest() {
+    Chain fold = getBest();
+    if (fold != null && publish != null) publish.accept(fold);
+  }
+
+  private class Replica implements Callable<Void> {
+    final Chain chain;
+    final IncrementalScorer scorer;
+    final ClashGrid clashGrid = new ClashGrid();
+    final Random random;
+    // set by the coordinator before each round
+    double temperature;
+    double step;
+    // state after the last round
+    double score;
+    boolean isClash;
+    int accepted;
+    // best clash free fold this replica has been in
+    double bestScore = Double.NEGATIVE_INFINITY;
+    final double[] bestTheta;
+    final double[] bestTao;
+
+    Replica(Chain start, long seed) {
+      chain = start.copy();
+      chain.anglesToCarts();
+      scorer = new IncrementalScorer(restraints);
+      random = new Random(seed);
+      bestTheta = new double[chain.length];
+      bestTao = new double[chain.length];
+      score = scorer.reset(chain);
+      isClash = clashGrid.hasClash(chain);
+      if (!isClash) keepBest();
+    }
+
+    @Override
+    public Void call() {
+      int n = chain.length;
+      accepted = 0;
+      // nodes 1..n-2 have a planar angle and 1..n-3 a dihedral one
+      if (n < 3) return null;
+      // the running sum drifts with every update - start each round exact
+      score = scorer.reset(chain);
+      for (int m = 0; m < MOVES_PER_ROUND; m++) {
+        int i = 1 + random.nextInt(n - 2);
+        boolean isPlanar = i == n - 2 || random.nextBoolean();
+        double[] angles = isPlanar ? chain.theta : chain.tao;
+        double old = angles[i];
+        double angle = old + step * random.nextGaussian();
+        angles[i] = isPlanar ? clampPlanar(angle) : wrapDihedral(angle);
+        int start = DihedralUtility.firstAffected(i);
+        chain.recomputeFrom(start);
+        double next = scorer.update(chain, start);
+        double delta = next - score;
+        boolean isAccepted = delta >= 0 || random.nextDouble() < Math.exp(delta / temperature);
+        // only a move that leaves no clash is taken from a clash free fold.
+        // a fold that starts out clashing may move through other clashing
+        // folds until it finds its way out
+        boolean isNextClash = false;
+        if (isAccepted) {
+          isNextClash = clashGrid.hasClash(chain);
+          if (isNextClash && !isClash) isAccepted = false;
+        }
+        if (isAccepted) {
+          score = next;
+          isClash = isNextClash;
+          accepted++;
+          if (!isClash && score > bestScore) keepBest();
+        }
+        else {
+          angles[i] = old;
+          chain.recomputeFrom(start);
+          scorer.update(chain, start);
+        }
+      }
+      return null;
+    }
+
+    void keepBest() {
+      bestScore = score;
+      System.arraycopy(chain.theta, 0, bestTheta, 0, chain.length);
+      System.arraycopy(chain.tao, 0, bestTao, 0, chain.length);
+    }
+  }
+
+  private static double clampPlanar(double angle) {
+    return Math.max(EPS, Math.min(Math.PI - EPS, angle));
+  }
+
+  // wraps a dihedral angle into (-pi, pi]
+  private static double wrapDihedral(double angle) {
+    angle = Math.IEEEremainder(angle, 2 * Math.PI);
+    return angle == -Math.PI ? Math.PI : angle;
+  }
+}
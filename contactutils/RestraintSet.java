@@ -0,0 +1,108 @@
+package contactutils;
+
+import java.util.Arrays;
+
+// sparse store of the contacts listed in a .rr file. each restraint is a pair
+// of residues i < j and the distance expected between them, kept in parallel
+// primitive arrays sorted by i then j so scoring walks memory in order
+public class RestraintSet {
+  // number of residues in the chain the restraints refer to
+  public final int residues;
+  public int size;
+  public int[] i;
+  public int[] j;
+  public double[] dist;
+  // sum of every expected distance read - the best attainable score
+  public double total;
+  // once sorted, restraints with first residue r are rowStart[r]..rowStart[r+1]-1
+  public int[] rowStart;
+
+  public RestraintSet(int residues) {
+    this.residues = residues;
+    this.size = 0;
+    this.i = new int[16];
+    this.j = new int[16];
+    this.dist = new double[16];
+    this.total = 0.0;
+  }
+
+  // adds a restraint between residues a and b (zero indexed). pairs outside
+  // the chain, self pairs and non positive distances are not contacts
+  public void add(int a, int b, double d) {
+    total += d;
+    if (a == b || d <= 0.0) return;
+    if (a < 0 || b < 0 || a >= residues || b >= residues) return;
+    if (a > b) {
+      int t = a;
+      a = b;
+      b = t;
+    }
+    if (size == i.length) {
+      int capacity = Math.max(16, 2 * size);
+      i = Arrays.copyOf(i, capacity);
+      j = Arrays.copyOf(j, capacity);
+      dist = Arrays.copyOf(dist, capacity);
+    }
+    i[size] = a;
+    j[size] = b;
+    dist[size] = d;
+    size++;
+    rowStart = null;
+  }
+
+  // sorts restraints by first then second residue and drops duplicate pairs,
+  // keeping the one listed last. runs in linear time with a counting sort on
+  // the first residue followed by an insertion sort of each (short) row
+  public void sort() {
+    int[] count = new int[residues + 1];
+    for (int k = 0; k < size; k++) {
+      count[i[k] + 1]++;
+    }
+    for (int r = 0; r < residues; r++) {
+      count[r + 1] += count[r];
+    }
+    int[] sortedI = new int[size];
+    int[] sortedJ = new int[size];
+    double[] sortedDist = new double[size];
+    int[] next = Arrays.copyOf(count, residues);
+    for (int k = 0; k < size; k++) {
+      int at = next[i[k]]++;
+      sortedI[at] = i[k];
+      sortedJ[at] = j[k];
+      sortedDist[at] = dist[k];
+    }
+    // stable insertion sort by j within each row keeps the file order of duplicates
+    for (int r = 0; r < residues; r++) {
+      for (int k = count[r] + 1; k < count[r + 1]; k++) {
+        int b = sortedJ[k];
+        double d = sortedDist[k];
+        int m = k - 1;
+        while (m >= count[r] && sortedJ[m] > b) {
+          sortedJ[m + 1] = sortedJ[m];
+          sortedDist[m + 1] = sortedDist[m];
+          m--;
+        }
+        sortedJ[m + 1] = b;
+        sortedDist[m + 1] = d;
+      }
+    }
+    // drop duplicates, the last of a run of equal pairs wins
+    rowStart = new int[residues + 1];
+    int n = 0;
+    for (int k = 0; k < size; k++) {
+      if (k + 1 < size && sortedI[k + 1] == sortedI[k] && sortedJ[k + 1] == sortedJ[k]) continue;
+      sortedI[n] = sortedI[k];
+      sortedJ[n] = sortedJ[k];
+      sortedDist[n] = sortedDist[k];
+      rowStart[sortedI[n] + 1]++;
+      n++;
+    }
+    for (int r = 0; r < residues; r++) {
+      rowStart[r + 1] += rowStart[r];
+    }
+    size = n;
+    i = sortedI;
+    j = sortedJ;
+    dist = sortedDist;
+  }
+}
@@ -0,0 +1,126 @@
+package contactutils;
+
+import dihedralutils.Chain;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Consumer;
+
+// scores chains on a background thread. each submit takes an immutable copy
+// of the chain tagged with a new version. if several are submitted before the
+// worker gets to them only the newest is scored, and a result is dropped if a
+// newer version was submitted while it was being computed
+public class ScoreWorker {
+  // versions are unique across workers so a result can never be mistaken for
+  // one from a worker that replaced it
+  private static final AtomicLong versions = new AtomicLong();
+  // restraints scored between checks for a newer version
+  private static final int CHUNK = 1024;
+
+  public static class Result {
+    public final long version;
+    public final Chain chain;
+    public final boolean isClash;
+    public final double score;
+    // distance of every restraint, in restraint order
+    public final double[] distance;
+
+    private Result(long version, Chain chain, boolean isClash, double score, double[] distance) {
+      this.version = version;
+      this.chain = chain;
+      this.isClash = isClash;
+      this.score = score;
+      this.distance = distance;
+    }
+  }
+
+  private static class Snapshot {
+    final long version;
+    final Chain chain;
+
+    Snapshot(long version, Chain chain) {
+      this.version = version;
+      this.chain = chain;
+    }
+  }
+
+  public final RestraintSet restraints;
+  // called on the worker thread with every result that was current when finished
+  private final Consumer<Result> publish;
+  private final AtomicReference<Snapshot> pending = new AtomicReference<Snapshot>();
+  private volatile long latest = -1;
+  private final ClashGrid clashGrid = new ClashGrid();
+  // the worker may still be busy with a stale chain while the caller scores
+  private final ClashGrid callerClashGrid = new ClashGrid();
+  private final ExecutorService executor = Executors.newSingleThreadExecutor(r -> {
+    Thread t = new Thread(r, "score-worker");
+    t.setDaemon(true);
+    return t;
+  });
+
+  public ScoreWorker(RestraintSet restraints, Consumer<Result> publish) {
+    this.restraints = restraints;
+    this.publish = publish;
+  }
+
+  // queues a copy of the chain for scoring and returns its version
+  public long submit(Chain chain) {
+    long version = versions.incrementAndGet();
+    latest = version;
+    pending.set(new Snapshot(version, chain.copy()));
+    executor.execute(this::run);
+    return version;
+  }
+
+  // true if no newer chain has been submitted, and the chain was not
+  // invalidated, since this result's
+  public boolean isCurrent(Result result) {
+    return result.version == latest;
+  }
+
+  // marks every result submitted so far as stale, for when the chain was
+  // edited without being submitted again
+  public void invalidate() {
+    latest = versions.incrementAndGet();
+    pending.set(null);
+  }
+
+  public void shutdown() {
+    executor.shutdownNow();
+  }
+
+  // scores the chain on the calling thread, superseding anything submitted
+  // before. used where the result is needed before going on, as in a replay
+  public Result score(Chain chain) {
+    long version = versions.incrementAndGet();
+    latest = version;
+    pending.set(null);
+    return score(new Snapshot(version, chain.copy()), callerClashGrid);
+  }
+
+  private void run() {
+    // queued runs that find nothing pending were superseded by an earlier run
+    Snapshot s = pending.getAndSet(null);
+    if (s == null) return;
+    Result result = score(s, clashGrid);
+    if (result != null) publish.accept(result);
+  }
+
+  // null if a newer chain was submitted before it was done
+  private Result score(Snapshot s, ClashGrid grid) {
+    boolean isClash = grid.hasClash(s.chain);
+    double score = 0.0;
+    double[] distance = new double[restraints.size];
+    if (!isClash) {
+      DistanceKernel kernel = DistanceKernel.get();
+      for (int k = 0; k < restraints.size; k += CHUNK) {
+        // give up early on stale work
+        if (s.version != latest) return null;
+        score += kernel.score(s.chain, restraints, k, Math.min(k + CHUNK, restraints.size), distance, null);
+      }
+    }
+    if (s.version != latest) return null;
+    return new Result(s.version, s.chain, isClash, score, distance);
+  }
+}
@@ -0,0 +1,159 @@
+package dihedralutils;
+
+// structure of arrays model of a chain. coordinates and angles are stored in
+// primitive arrays indexed by node so the geometry path never allocates
+public class Chain {
+  public final int length;
+  // cartesian coordinates of each node
+  public final double[] x;
+  public final double[] y;
+  public final double[] z;
+  // planar and dihedral angle of each node
+  public final double[] theta;
+  public final double[] tao;
+  // amino acid and secondary structure of each node
+  public final char[] aa;
+  public final char[] ss;
+
+  public Chain(int length) {
+    this.length = length;
+    this.x = new double[length];
+    this.y = new double[length];
+    this.z = new double[length];
+    this.theta = new double[length];
+    this.tao = new double[length];
+    this.aa = new char[length];
+    this.ss = new char[length];
+  }
+
+  public static Chain fromAngles(Angular[] angles) {
+    Chain chain = new Chain(angles.length);
+    for (int i = 0; i < angles.length; i++) {
+      chain.theta[i] = angles[i].theta;
+      chain.tao[i] = angles[i].tao;
+      chain.aa[i] = angles[i].aa;
+      chain.ss[i] = angles[i].ss;
+    }
+    chain.anglesToCarts();
+    return chain;
+  }
+
+  public static Chain fromCarts(Cartesian[] carts) {
+    Chain chain = new Chain(carts.length);
+    for (int i = 0; i < carts.length; i++) {
+      chain.x[i] = carts[i].ca.x;
+      chain.y[i] = carts[i].ca.y;
+      chain.z[i] = carts[i].ca.z;
+    }
+    chain.cartsToAngles();
+    return chain;
+  }
+
+  public Chain copy() {
+    Chain chain = new Chain(length);
+    chain.copyFrom(this);
+    return chain;
+  }
+
+  // overwrites this chain with another of the same length
+  public void copyFrom(Chain other) {
+    System.arraycopy(other.x, 0, x, 0, length);
+    System.arraycopy(other.y, 0, y, 0, length);
+    System.arraycopy(other.z, 0, z, 0, length);
+    System.arraycopy(other.theta, 0, theta, 0, length);
+    System.arraycopy(other.tao, 0, tao, 0, length);
+    System.arraycopy(other.aa, 0, aa, 0, length);
+    System.arraycopy(other.ss, 0, ss, 0, length);
+  }
+
+  // places every node from the current angles
+  public void anglesToCarts() {
+    if (length == 0) return;
+    // first node at origin
+    x[0] = 0.0;
+    y[0] = 0.0;
+    z[0] = 0.0;
+    if (length == 1) return;
+    // second node at bond length along x axis
+    x[1] = DihedralUtility.BOND_LEN;
+    y[1] = 0.0;
+    z[1] = 0.0;
+    recomputeFrom(2);
+  }
+
+  // re-places nodes start..length-1 from the current angles. nodes before
+  // start are the cached prefix and are left untouched - see
+  // DihedralUtility.firstAffected for which node an edit first moves
+  public void recomputeFrom(int start) {
+    if (start < 2) start = 2;
+    for (int i = start; i < length; i++) {
+      if (i == 2) {
+        DihedralUtility.setCoordinate(x, y, z, 2, tao[1], theta[1], DihedralUtility.BOND_LEN);
+      }
+      else {
+        DihedralUtility.setCoordinate(x, y, z, i, tao[i-2], theta[i-1], DihedralUtility.BOND_LEN);
+      }
+    }
+  }
+
+  // derives every angle from the current coordinates
+  public void cartsToAngles() {
+    cartsToAngles(0, length);
+  }
+
+  // derives the angles of nodes from..to-1. each angle only reads the
+  // coordinates around its node, so disjoint ranges can be converted at once
+  public void cartsToAngles(int from, int to) {
+    final double undefined = 2 * DihedralUtility.PI;
+    for (int i = from; i < to; i++) {
+      // first, second to last, and last nodes have no tao
+      if (i == 0 || i == length-1 || i == length-2) {
+        tao[i] = undefined;
+      }
+      else {
+        tao[i] = DihedralUtility.getDihedral(x, y, z, i-1, i, i+1, i+2);
+      }
+      // first and last node have no theta
+      if (i == 0 || i == length-1) {
+        theta[i] = undefined;
+      }
+      else {
+        theta[i] = DihedralUtility.getAngle(x, y, z, i-1, i, i+1);
+      }
+    }
+  }
+
+  public double getDistance(int i, int j) {
+    double dx = x[i] - x[j];
+    double dy = y[i] - y[j];
+    double dz = z[i] - z[j];
+    return Math.sqrt(dx * dx + dy * dy + dz * dz);
+  }
+
+  public Angular[] toAngles() {
+    Angular[] angles = new Angular[length];
+    for (int i = 0; i < length; i++) {
+      Angular a = new Angular();
+      a.id = i;
+      a.theta = theta[i];
+      a.tao = tao[i];
+      a.aa = aa[i];
+      a.ss = ss[i];
+      angles[i] = a;
+    }
+    return angles;
+  }
+
+  public Cartesian[] toCarts() {
+    Cartesian[] carts = new Cartesian[length];
+    for (int i = 0; i < length; i++) {
+      Cartesian c = new Cartesian();
+      c.id = i;
+      c.ca.x = x[i];
+      c.ca.y = y[i];
+      c.ca.z = z[i];
+      carts[i] = c;
+    }
+    return carts;
+  }
+}
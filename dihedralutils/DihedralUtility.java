@@ -1,83 +1,112 @@
 package dihedralutils;
 
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
 public class DihedralUtility {
   public static final double BOND_LEN = 3.8;
   public static final double PI = Math.PI;
 
   public static Angular[] carts2Angles(Cartesian[] carts) {
-    Angular[] angles = new Angular[carts.length];
-
-    // virtual N terminus
-    Point N = new Point();
-    N.x = carts[0].ca.x - Math.cos(PI) * BOND_LEN;
-    N.y = carts[0].ca.y - Math.sin(PI) * BOND_LEN;
-    N.z = carts[0].ca.z;
-    // virtual C terminus
-    Point C = new Point();
-    C.x = carts[carts.length-1].ca.x + Math.cos(PI) * BOND_LEN;
-    C.y = carts[carts.length-1].ca.y + Math.sin(PI) * BOND_LEN;
-    C.z = carts[carts.length-1].ca.z;
-
-    Angular a;
+    Angular[] angles = Chain.fromCarts(carts).toAngles();
     for (int i = 0; i < carts.length; i++) {
-      a = new Angular();
-      a.id = carts[i].id;
-      // tao
-      if (i == 0 || i == carts.length-1 || i == carts.length-2) {
-        a.tao = 2*PI;
-      }
-      else {
-        a.tao = getDihedral(carts[i-1].ca, carts[i].ca, carts[i+1].ca, carts[i+2].ca);
-      }
-      // theta
-      if (i == 0 || i == carts.length-1) {
-        a.theta = 2*PI;
+      angles[i].id = carts[i].id;
+    }
+    return angles;
+  }
+
+  // nodes converted by one task before it stops splitting
+  private static final int ANGLE_BLOCK = 4096;
+
+  // derives the angles of many chains, such as the models of a trajectory, on
+  // every core. chains longer than a block are split as well, so one large
+  // structure is converted in parallel too
+  public static void carts2Angles(List<Chain> chains) {
+    int blocks = 0;
+    for (Chain chain : chains) {
+      blocks += (chain.length + ANGLE_BLOCK - 1) / ANGLE_BLOCK;
+    }
+    Chain[] blockChain = new Chain[blocks];
+    int[] blockStart = new int[blocks];
+    int b = 0;
+    for (Chain chain : chains) {
+      for (int start = 0; start < chain.length; start += ANGLE_BLOCK) {
+        blockChain[b] = chain;
+        blockStart[b] = start;
+        b++;
       }
-      else {
-        a.theta = getAngle(carts[i-1].ca, carts[i].ca, carts[i+1].ca);
+    }
+    ForkJoinPool.commonPool().invoke(new AnglesTask(blockChain, blockStart, 0, blocks));
+  }
+
+  private static class AnglesTask extends RecursiveAction {
+    private static final long serialVersionUID = 1L;
+
+    final Chain[] blockChain;
+    final int[] blockStart;
+    final int lo;
+    final int hi;
+
+    AnglesTask(Chain[] blockChain, int[] blockStart, int lo, int hi) {
+      this.blockChain = blockChain;
+      this.blockStart = blockStart;
+      this.lo = lo;
+      this.hi = hi;
+    }
+
+    @Override
+    protected void compute() {
+      if (hi - lo <= 1) {
+        for (int b = lo; b < hi; b++) {
+          Chain chain = blockChain[b];
+          chain.cartsToAngles(blockStart[b], Math.min(chain.length, blockStart[b] + ANGLE_BLOCK));
+        }
+        return;
       }
-      angles[i] = a;
+      int mid = (lo + hi) >>> 1;
+      invokeAll(new AnglesTask(blockChain, blockStart, lo, mid), new AnglesTask(blockChain, blockStart, mid, hi));
     }
-    return angles;
   }
 
+  // virtual N terminus used to place the third node
+  private static final Point VIRTUAL_N = new Point(
+    0.0 - Math.cos(PI) * BOND_LEN,
+    0.0 - Math.sin(PI) * BOND_LEN,
+    0.0
+  );
+
   public static Cartesian[] angles2Carts(Angular[] angles) {
-    Cartesian[] carts = new Cartesian[angles.length];
-    Cartesian c = new Cartesian();
-
-    // virtual N terminus
-    Point N = new Point();
-    N.x = 0.0 - Math.cos(PI) * BOND_LEN;
-    N.y = 0.0 - Math.sin(PI) * BOND_LEN;
-    N.z = 0.0;
-    // first node at origin
-    c.id = angles[0].id;
-    c.ca.x = 0.0;
-    c.ca.y = 0.0;
-    c.ca.z = 0.0;
-    carts[0] = c;
-    // second node at bond length along x axis
-    c = new Cartesian();
-    c.id = angles[1].id;
-    c.ca.x = BOND_LEN;
-    c.ca.y = 0.0;
-    c.ca.z = 0.0;
-    carts[1] = c;
-    // third node at bond angle and bond length
-    c = new Cartesian();
-    c.id = angles[2].id;
-    setCoordinate(N, carts[0].ca, carts[1].ca, c.ca, angles[1].tao, angles[1].theta, BOND_LEN);
-    carts[2] = c;
-
-    for (int i = 3; i < angles.length; i++) {
-      c = new Cartesian();
-      c.id = angles[i].id;
-      setCoordinate(carts[i-3].ca, carts[i-2].ca, carts[i-1].ca, c.ca, angles[i-2].tao, angles[i-1].theta, BOND_LEN);
-      carts[i] = c;
+    Cartesian[] carts = Chain.fromAngles(angles).toCarts();
+    for (int i = 0; i < angles.length; i++) {
+      carts[i].id = angles[i].id;
     }
     return carts;
   }
 
+  // returns the first node moved by a change to the theta or tao of node i.
+  // node k is placed from nodes k-3, k-2, k-1 using tao[k-2] and theta[k-1],
+  // so nothing at or before i can move
+  public static int firstAffected(int i) {
+    return Math.max(2, i + 1);
+  }
+
+  // re-places nodes start..n-1 of an existing coordinate array in place. the
+  // prefix 0..start-1 is treated as cached and is not touched, so an edit near
+  // the end of a long chain only costs the length of the remaining suffix
+  public static void recomputeFrom(Angular[] angles, Cartesian[] carts, int start) {
+    if (start < 2) start = 2;
+    for (int i = start; i < angles.length; i++) {
+      if (i == 2) {
+        // third node at bond angle and bond length
+        setCoordinate(VIRTUAL_N, carts[0].ca, carts[1].ca, carts[2].ca, angles[1].tao, angles[1].theta, BOND_LEN);
+      }
+      else {
+        setCoordinate(carts[i-3].ca, carts[i-2].ca, carts[i-1].ca, carts[i].ca, angles[i-2].tao, angles[i-1].theta, BOND_LEN);
+      }
+    }
+  }
+
 
   public static void setCoordinate(Point c0, Point c1, Point c2, Point c3, double alpha, double tao, double normw) {
     double  u1, u2, u3, v1, v2, v3, norm;
@@ -122,25 +151,99 @@ public class DihedralUtility {
     c3.z = u3 + c2.z;
   }
 
+  // allocation free version of setCoordinate for structure of arrays chains.
+  // places node i from nodes i-3, i-2 and i-1 - node 2 is placed from the
+  // virtual N terminus
+  public static void setCoordinate(double[] x, double[] y, double[] z, int i, double alpha, double tao, double normw) {
+    double x0, y0, z0;
+    if (i == 2) {
+      x0 = VIRTUAL_N.x;
+      y0 = VIRTUAL_N.y;
+      z0 = VIRTUAL_N.z;
+    }
+    else {
+      x0 = x[i-3];
+      y0 = y[i-3];
+      z0 = z[i-3];
+    }
+    double  u1, u2, u3, v1, v2, v3, norm;
+    double pvuv1, pvuv2, pvuv3, pvvuv1, pvvuv2, pvvuv3;
+    double nsa, nca, nct;
+    u1 = (x[i-2] - x0);
+    u2 = (y[i-2] - y0);
+    u3 = (z[i-2] - z0);
+    v1 = (x[i-1] - x[i-2]);
+    v2 = (y[i-1] - y[i-2]);
+    v3 = (z[i-1] - z[i-2]);
+    norm = Math.sqrt(v1 * v1 + v2 * v2 + v3 * v3);
+    v1 /=  norm;
+    v2 /=  norm;
+    v3 /=  norm;
+    pvuv1 = u2 * v3 - u3 * v2;
+    pvuv2 = u3 * v1 - u1 * v3;
+    pvuv3 = u1 * v2 - u2 * v1;
+    norm = Math.sqrt(pvuv1 * pvuv1 + pvuv2 * pvuv2 + pvuv3 * pvuv3);
+    pvuv1 /= norm;
+    pvuv2 /= norm;
+    pvuv3 /= norm;
+    pvvuv1 = v2 * pvuv3 - v3 * pvuv2;
+    pvvuv2 = v3 * pvuv1 - v1 * pvuv3;
+    pvvuv3 = v1 * pvuv2 - v2 * pvuv1;
+    norm = Math.sqrt(pvvuv1 * pvvuv1 + pvvuv2 * pvvuv2 + pvvuv3 * pvvuv3);
+    pvvuv1 /= norm;
+    pvvuv2 /= norm;
+    pvvuv3 /= norm;
+    nca = Math.cos(alpha);
+    nsa = Math.sin(alpha);
+    nct = Math.tan(tao - PI/2);
+    u1 = nca * (-pvvuv1) + nsa * pvuv1 + v1 * nct;
+    u2 = nca * (-pvvuv2) + nsa * pvuv2 + v2 * nct;
+    u3 = nca * (-pvvuv3) + nsa * pvuv3 + v3 * nct;
+    norm = Math.sqrt(u1 * u1 + u2 * u2 + u3 * u3);
+    x[i] = u1 * normw/norm + x[i-1];
+    y[i] = u2 * normw/norm + y[i-1];
+    z[i] = u3 * normw/norm + z[i-1];
+  }
+
   public static double getDistance(Point p1, Point p2) {
     return Math.pow(p1.x - p2.x, 2) + Math.pow(p1.y - p2.y, 2) + Math.pow(p1.z - p2.z, 2);
   }
 
   public static double getDihedral(Point p1, Point p2, Point p3, Point p4) {
-    Point q, r, s, t, u, v;
-    Point z = new Point();
-    z.x = 0.0;
-    z.y = 0.0;
-    z.z = 0.0;
-    double acc, w;
-    q = getDifference(p1, p2);
-    r = getDifference(p3, p2);
-    s = getDifference(p4, p3);
-    t = getCrossProd(q, r);
-    u = getCrossProd(s, r);
-    v = getCrossProd(u, t);
-    w = getDotProd(v, r);
-    acc = getAngle(t, z, u);
+    return dihedral(
+      p2.x - p1.x, p2.y - p1.y, p2.z - p1.z,
+      p2.x - p3.x, p2.y - p3.y, p2.z - p3.z,
+      p3.x - p4.x, p3.y - p4.y, p3.z - p4.z
+    );
+  }
+
+  // allocation free version of getDihedral for structure of arrays chains
+  public static double getDihedral(double[] x, double[] y, double[] z, int i, int j, int k, int l) {
+    return dihedral(
+      x[j] - x[i], y[j] - y[i], z[j] - z[i],
+      x[j] - x[k], y[j] - y[k], z[j] - z[k],
+      x[k] - x[l], y[k] - y[l], z[k] - z[l]
+    );
+  }
+
+  // dihedral angle given the three bond vectors q = p2 - p1, r = p2 - p3 and
+  // s = p3 - p4. the angle between the two plane normals is taken from the
+  // sine and cosine of it together, which is valid for any bond angle and
+  // stays accurate near 0 and pi where acos loses precision
+  private static double dihedral(double qx, double qy, double qz, double rx, double ry, double rz, double sx, double sy, double sz) {
+    // t = q x r, u = s x r
+    double tx = qy * rz - qz * ry;
+    double ty = qz * rx - qx * rz;
+    double tz = qx * ry - qy * rx;
+    double ux = sy * rz - sz * ry;
+    double uy = sz * rx - sx * rz;
+    double uz = sx * ry - sy * rx;
+    // v = u x t, sign of v . r gives the handedness
+    double vx = uy * tz - uz * ty;
+    double vy = uz * tx - ux * tz;
+    double vz = ux * ty - uy * tx;
+    double w = vx * rx + vy * ry + vz * rz;
+    double acc = Math.atan2(Math.sqrt(vx * vx + vy * vy + vz * vz), tx * ux + ty * uy + tz * uz);
     if (w < 0) {
       acc = -acc;
     }
@@ -170,10 +273,12 @@ public class DihedralUtility {
   public static double getAngle(Point p1, Point p2, Point p3) {
     double acc = 0.0;
     acc = (p2.x - p1.x) * (p2.x - p3.x) + (p2.y - p1.y) * (p2.y - p3.y) + (p2.z - p1.z) * (p2.z - p3.z);
-    double d1 = BOND_LEN;
-    double d2 = BOND_LEN;
+    // measured bond lengths - chains read from real structures are not
+    // exactly BOND_LEN apart
+    double d1 = Math.sqrt(getDistance(p1, p2));
+    double d2 = Math.sqrt(getDistance(p2, p3));
 
-    acc /= (d1 * d2);
+    acc = (d1 * d2 == 0.0) ? 1.0 : acc / (d1 * d2);
     if (acc > 1.0) {
       acc = 1.0;
     }
@@ -183,6 +288,20 @@ public class DihedralUtility {
     acc = Math.acos(acc);
     return acc;
   }
-}
-
 
+  // allocation free version of getAngle for structure of arrays chains. the
+  // angle is taken from its sine and cosine together, so it holds for any
+  // bond lengths and stays accurate for nearly straight chains
+  public static double getAngle(double[] x, double[] y, double[] z, int i, int j, int k) {
+    double ux = x[j] - x[i];
+    double uy = y[j] - y[i];
+    double uz = z[j] - z[i];
+    double vx = x[j] - x[k];
+    double vy = y[j] - y[k];
+    double vz = z[j] - z[k];
+    double cx = uy * vz - uz * vy;
+    double cy = uz * vx - ux * vz;
+    double cz = ux * vy - uy * vx;
+    return Math.atan2(Math.sqrt(cx * cx + cy * cy + cz * cz), ux * vx + uy * vy + uz * vz);
+  }
+}
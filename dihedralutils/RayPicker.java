@@ -0,0 +1,231 @@
+package dihedralutils;
+
+import java.util.Arrays;
+
+// finds the node a ray hits first, treating each node as a sphere around its
+// coordinates. nodes are kept in a bounding volume hierarchy of axis aligned
+// boxes so a pick looks at a few boxes per level instead of every node. after
+// the chain moves the boxes are refit to the new coordinates, and the tree is
+// only rebuilt once refitting has let the boxes grow too loose. all buffers
+// are kept between calls so picking on a chain of the same length is free of
+// allocation
+public class RayPicker {
+  // most nodes kept in one leaf of the tree
+  private static final int LEAF_SIZE = 4;
+  // refit boxes may grow to this many times their area when built
+  private static final double MAX_LOOSENESS = 2.0;
+
+  private double radius;
+  private int length;
+  // node indices, ordered so every tree node covers a contiguous run
+  private int[] order = new int[0];
+  // boxes of the tree nodes, min x y z then max x y z
+  private double[] box = new double[0];
+  // leaves cover count nodes of order from first, inner nodes have a count
+  // of 0 and children first and first + 1
+  private int[] first = new int[0];
+  private int[] count = new int[0];
+  private int nodes;
+  // summed surface area of the boxes when the tree was built
+  private double builtArea;
+  private int[] stack = new int[64];
+
+  public int getLength() {
+    return length;
+  }
+
+  // builds the tree over the nodes of a chain with spheres of the given radius
+  public void build(Chain chain, double radius) {
+    this.radius = radius;
+    length = chain.length;
+    if (order.length < length) {
+      order = new int[length];
+      box = new double[6 * 2 * length];
+      first = new int[2 * length];
+      count = new int[2 * length];
+    }
+    for (int i = 0; i < length; i++) order[i] = i;
+    nodes = 0;
+    if (length > 0) {
+      nodes = 1;
+      split(chain, 0, 0, length);
+    }
+    builtArea = getArea();
+  }
+
+  // fits the boxes to the chain after it moved, rebuilding the tree if the
+  // chain changed length or the boxes have grown too loose
+  public void refit(Chain chain) {
+    if (chain.length != length) {
+      build(chain, radius);
+      return;
+    }
+    // children are always made after their parent, so going backwards fits
+    // both children of a node before the node itself
+    for (int k = nodes - 1; k >= 0; k--) {
+      if (count[k] > 0) {
+        fitNodes(chain, k, first[k], first[k] + count[k]);
+      }
+      else {
+        int a = 6 * first[k];
+        int b = 6 * (first[k] + 1);
+        for (int d = 0; d < 3; d++) {
+          box[6*k + d] = Math.min(box[a + d], box[b + d]);
+          box[6*k + 3 + d] = Math.max(box[a + 3 + d], box[b + 3 + d]);
+        }
+      }
+    }
+    if (getArea() > MAX_LOOSENESS * builtArea) build(chain, radius);
+  }
+
+  // returns the first node hit by the ray from o along d, or -1 if none is.
+  // d need not be normalized
+  public int pick(Chain chain, double ox, double oy, double oz, double dx, double dy, double dz) {
+    if (nodes == 0) return -1;
+    double ix = 1.0 / dx;
+    double iy = 1.0 / dy;
+    double iz = 1.0 / dz;
+    double a = dx * dx + dy * dy + dz * dz;
+    double r2 = radius * radius;
+    double best = Double.POSITIVE_INFINITY;
+    int hit = -1;
+    int top = 0;
+    stack[top++] = 0;
+    while (top > 0) {
+      int k = stack[--top];
+      if (getEntry(k, ox, oy, oz, ix, iy, iz) >= best) continue;
+      if (count[k] == 0) {
+        if (top + 2 > stack.length) stack = Arrays.copyOf(stack, 2 * stack.length);
+        stack[top++] = first[k];
+        stack[top++] = first[k] + 1;
+        continue;
+      }
+      for (int p = first[k]; p < first[k] + count[k]; p++) {
+        int i = order[p];
+        // solve |o + t d - c| = radius for the nearest t in front of o
+        double cx = ox - chain.x[i];
+        double cy = oy - chain.y[i];
+        double cz = oz - chain.z[i];
+        double b = dx * cx + dy * cy + dz * cz;
+        double c = cx * cx + cy * cy + cz * cz - r2;
+        double disc = b * b - a * c;
+        if (disc < 0) continue;
+        double root = Math.sqrt(disc);
+        double t = (-b - root) / a;
+        // a ray starting inside the sphere leaves through the far side
+        if (t < 0) t = (-b + root) / a;
+        if (t >= 0 && t < best) {
+          best = t;
+          hit = i;
+        }
+      }
+    }
+    return hit;
+  }
+
+  // splits nodes from..to-1 of order under tree node k at the middle node
+  // along the widest axis of their coordinates
+  private void split(Chain chain, int k, int from, int to) {
+    fitNodes(chain, k, from, to);
+    if (to - from <= LEAF_SIZE) {
+      first[k] = from;
+      count[k] = to - from;
+      return;
+    }
+    double[] axis = chain.x;
+    double width = box[6*k + 3] - box[6*k];
+    if (box[6*k + 4] - box[6*k + 1] > width) {
+      axis = chain.y;
+      width = box[6*k + 4] - box[6*k + 1];
+    }
+    if (box[6*k + 5] - box[6*k + 2] > width) {
+      axis = chain.z;
+    }
+    int mid = (from + to) >>> 1;
+    select(axis, from, to - 1, mid);
+    int left = nodes;
+    nodes += 2;
+    first[k] = left;
+    count[k] = 0;
+    split(chain, left, from, mid);
+    split(chain, left + 1, mid, to);
+  }
+
+  // sets the box of tree node k around the spheres of nodes from..to-1
+  private void fitNodes(Chain chain, int k, int from, int to) {
+    double minX = Double.POSITIVE_INFINITY, minY = minX, minZ = minX;
+    double maxX = Double.NEGATIVE_INFINITY, maxY = maxX, maxZ = maxX;
+    for (int p = from; p < to; p++) {
+      int i = order[p];
+      minX = Math.min(minX, chain.x[i]);
+      minY = Math.min(minY, chain.y[i]);
+      minZ = Math.min(minZ, chain.z[i]);
+      maxX = Math.max(maxX, chain.x[i]);
+      maxY = Math.max(maxY, chain.y[i]);
+      maxZ = Math.max(maxZ, chain.z[i]);
+    }
+    int b = 6 * k;
+    box[b] = minX - radius;
+    box[b + 1] = minY - radius;
+    box[b + 2] = minZ - radius;
+    box[b + 3] = maxX + radius;
+    box[b + 4] = maxY + radius;
+    box[b + 5] = maxZ + radius;
+  }
+
+  // reorders order[lo..hi] so the node at position m is the one that would be
+  // there if sorted by the given coordinate, with smaller ones before it
+  private void select(double[] axis, int lo, int hi, int m) {
+    while (lo < hi) {
+      double pivot = axis[order[(lo + hi) >>> 1]];
+      int i = lo;
+      int j = hi;
+      while (i <= j) {
+        while (axis[order[i]] < pivot) i++;
+        while (axis[order[j]] > pivot) j--;
+        if (i <= j) {
+          int swap = order[i];
+          order[i] = order[j];
+          order[j] = swap;
+          i++;
+          j--;
+        }
+      }
+      if (m <= j) hi = j;
+      else if (m >= i) lo = i;
+      else return;
+    }
+  }
+
+  // distance along the ray at which it enters the box of tree node k, or
+  // infinity if it misses the box or the box is behind the ray
+  private double getEntry(int k, double ox, double oy, double oz, double ix, double iy, double iz) {
+    int b = 6 * k;
+    double t0 = (box[b] - ox) * ix;
+    double t1 = (box[b + 3] - ox) * ix;
+    double near = Math.min(t0, t1);
+    double far = Math.max(t0, t1);
+    t0 = (box[b + 1] - oy) * iy;
+    t1 = (box[b + 4] - oy) * iy;
+    near = Math.max(near, Math.min(t0, t1));
+    far = Math.min(far, Math.max(t0, t1));
+    t0 = (box[b + 2] - oz) * iz;
+    t1 = (box[b + 5] - oz) * iz;
+    near = Math.max(near, Math.min(t0, t1));
+    far = Math.min(far, Math.max(t0, t1));
+    // NaN from a ray lying in a face of the box counts as a hit
+    if (near > far || far < 0) return Double.POSITIVE_INFINITY;
+    return Math.max(near, 0);
+  }
+
+  private double getArea() {
+    double area = 0;
+    for (int k = 0; k < nodes; k++) {
+      double w = box[6*k + 3] - box[6*k];
+      double h = box[6*k + 4] - box[6*k + 1];
+      double d = box[6*k + 5] - box[6*k + 2];
+      area += w * h + h * d + d * w;
+    }
+    return area;
+  }
+}
@@ -0,0 +1,211 @@
+package fileutils;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Locale;
+
+// a timestamped trace of the input a player gave the game, so a slow session
+// can be replayed and timed again. a trace is a text file with one event per
+// line - the milliseconds since recording started, the event, and its
+// arguments
+//   0.000 open /home/player/puzzle.zip
+//   812.441 select 339
+//   1030.006 press-theta 339
+//   1046.671 theta 339 1.5707963267948966
+//   1402.913 release
+//   2210.350 undo
+//   3120.500 snap
+//   5071.022 fold 120 1.57 ... -2.61 ...
+// where residues count from 0, a select of -1 clears the selection, and the
+// residue of a slider value is only there for reading - the value applies to
+// the selected one. a fold is a whole fold put in place by auto-fold, given
+// as the number of residues, then every theta, then every tao. angles are
+// written in full so a replay sets exactly the same values
+public class InputTrace {
+  public static final char OPEN = 'o';
+  public static final char SELECT = 's';
+  public static final char PRESS_THETA = 'P';
+  public static final char PRESS_TAO = 'D';
+  public static final char THETA = 'p';
+  public static final char TAO = 'd';
+  public static final char RELEASE = 'R';
+  public static final char UNDO = 'u';
+  public static final char REDO = 'r';
+  public static final char SNAP = 'n';
+  public static final char FOLD = 'f';
+
+  private static final char[] TYPES = {
+    OPEN, SELECT, PRESS_THETA, PRESS_TAO, THETA, TAO, RELEASE, UNDO, REDO, SNAP, FOLD
+  };
+  private static final String[] NAMES = {
+    "open", "select", "press-theta", "press-tao", "theta", "tao", "release", "undo", "redo", "snap", "fold"
+  };
+
+  private int count;
+  // nanoseconds since recording started
+  public long[] nanos = new long[64];
+  public byte[] type = new byte[64];
+  public int[] node = new int[64];
+  public double[] value = new double[64];
+  // path of each open, null for other events
+  public String[] path = new String[64];
+  // every theta then every tao of each fold, null for other events
+  public double[][] angles = new double[64][];
+  // time each event took to replay, filled in by whoever replays it
+  public long[] latency = new long[64];
+
+  private long startNanos = System.nanoTime();
+
+  public int getCount() {
+    return count;
+  }
+
+  // times later events from now
+  public void start() {
+    count = 0;
+    startNanos = System.nanoTime();
+  }
+
+  public void add(char eventType, int id, double angle, String filePath) {
+    if (count == nanos.length) {
+      int capacity = 2 * count;
+      nanos = Arrays.copyOf(nanos, capacity);
+      type = Arrays.copyOf(type, capacity);
+      node = Arrays.copyOf(node, capacity);
+      value = Arrays.copyOf(value, capacity);
+      path = Arrays.copyOf(path, capacity);
+      angles = Arrays.copyOf(angles, capacity);
+      latency = Arrays.copyOf(latency, capacity);
+    }
+    nanos[count] = System.nanoTime() - startNanos;
+    type[count] = (byte) eventType;
+    node[count] = id;
+    value[count] = angle;
+    path[count] = filePath;
+    angles[count] = null;
+    latency[count] = 0;
+    count++;
+  }
+
+  // adds a whole fold put in place at once, copying its angles
+  public void addFold(double[] theta, double[] tao) {
+    add(FOLD, theta.length, 0.0, null);
+    double[] a = Arrays.copyOf(theta, theta.length + tao.length);
+    System.arraycopy(tao, 0, a, theta.length, tao.length);
+    angles[count - 1] = a;
+  }
+
+  public char getType(int k) {
+    return (char) type[k];
+  }
+
+  // name of the kth event as written in a trace
+  public String getName(int k) {
+    return NAMES[indexOf((char) type[k])];
+  }
+
+  // the kth event as it is written in a trace, without its time, and for a
+  // fold without its angles
+  public String describe(int k) {
+    switch ((char) type[k]) {
+      case OPEN:
+        return getName(k) + " " + path[k];
+      case SELECT:
+      case PRESS_THETA:
+      case PRESS_TAO:
+      case FOLD:
+        return getName(k) + " " + node[k];
+      case THETA:
+      case TAO:
+        return getName(k) + " " + node[k] + " " + value[k];
+    }
+    return getName(k);
+  }
+
+  public void write(File f) throws IOException {
+    Writer out = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(f), StandardCharsets.UTF_8));
+    try {
+      for (int k = 0; k < count; k++) {
+        out.write(String.format(Locale.ROOT, "%.3f ", nanos[k] / 1e6));
+        out.write(describe(k));
+        if (angles[k] != null) {
+          for (double a : angles[k]) {
+            out.write(' ');
+            out.write(Double.toString(a));
+          }
+        }
+        out.write('\n');
+      }
+    }
+    finally {
+      out.close();
+    }
+  }
+
+  public static InputTrace read(File f) throws IOException {
+    InputTrace t = new InputTrace();
+    BufferedReader br = new BufferedReader(new InputStreamReader(new FileInputStream(f), StandardCharsets.UTF_8));
+    try {
+      String line;
+      int lineNumber = 0;
+      while ((line = br.readLine()) != null) {
+        lineNumber++;
+        line = line.trim();
+        if (line.isEmpty()) continue;
+        // a path may hold spaces, so only the time and event are split off
+        String[] parts = line.split("\\s+", 3);
+        try {
+          if (parts.length < 2) throw new IllegalArgumentException("missing event");
+          int i = Arrays.asList(NAMES).indexOf(parts[1]);
+          if (i == -1) throw new IllegalArgumentException("unknown event " + parts[1]);
+          char eventType = TYPES[i];
+          String rest = parts.length == 3 ? parts[2] : "";
+          int id = -1;
+          double angle = 0.0;
+          String filePath = null;
+          double[] fold = null;
+          if (eventType == OPEN) {
+            filePath = rest;
+          }
+          else if (eventType == FOLD) {
+            String[] args = rest.split("\\s+");
+            id = Integer.parseInt(args[0]);
+            if (id < 0 || args.length != 1 + 2 * id) {
+              throw new IllegalArgumentException("expected " + (2 * id) + " angles after fold " + id);
+            }
+            fold = new double[2 * id];
+            for (int a = 0; a < fold.length; a++) {
+              fold[a] = Double.parseDouble(args[a+1]);
+            }
+          }
+          else if (eventType == THETA || eventType == TAO) {
+            String[] args = rest.split("\\s+");
+            id = Integer.parseInt(args[0]);
+            angle = Double.parseDouble(args[1]);
+          }
+          else if (eventType == SELECT || eventType == PRESS_THETA || eventType == PRESS_TAO) {
+            id = Integer.parseInt(rest);
+          }
+          t.add(eventType, id, angle, filePath);
+          t.angles[t.count - 1] = fold;
+          t.nanos[t.count - 1] = (long) (Double.parseDouble(parts[0]) * 1e6);
+        }
+        catch (RuntimeException e) {
+          throw new IOException(f.getName() + " line " + lineNumber + ": " + e.getMessage());
+        }
+      }
+    }
+    finally {
+      br.close();
+    }
+    return t;
+  }
+
+  private static int indexOf(char eventType) {
+    for (int i = 0; i < TYPES.length; i++) {
+      if (TYPES[i] == eventType) return i;
+    }
+    throw new IllegalArgumentException("Unknown event type " + eventType);
+  }
+}
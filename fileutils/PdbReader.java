@@ -0,0 +1,260 @@
+package fileutils;
+
+import dihedralutils.Chain;
+import dihedralutils.DihedralUtility;
+import java.io.*;
+import java.util.*;
+
+// streams alpha carbon traces out of .pdb files. lines are scanned as bytes
+// from a fixed buffer and coordinates are parsed in place, so a trajectory of
+// thousands of models is read without holding the file, or any line of it, as
+// strings. each MODEL .. ENDMDL block is one trace, and a file without MODEL
+// records is a single trace. only the first chain of a model is read, and of
+// atoms with alternate locations only the first
+public class PdbReader {
+  private final InputStream in;
+  private final byte[] buf = new byte[1 << 16];
+  private int pos;
+  private int limit;
+  // the current line, without its line break
+  private byte[] line = new byte[128];
+  private int lineLength;
+  private boolean isEnd;
+  // coordinates and residues of the trace being read
+  private double[] x = new double[256];
+  private double[] y = new double[256];
+  private double[] z = new double[256];
+  private char[] aa = new char[256];
+  private int count;
+  // x y z of the last atom line parsed
+  private final double[] xyz = new double[3];
+
+  public PdbReader(InputStream in) {
+    this.in = in;
+  }
+
+  public PdbReader(File f) throws IOException {
+    this(new FileInputStream(f));
+  }
+
+  public void close() throws IOException {
+    in.close();
+  }
+
+  // reads the CA trace of the first model into a chain with angles derived
+  // from the coordinates
+  public static Chain readCA(File f) throws IOException {
+    PdbReader reader = new PdbReader(f);
+    try {
+      Chain chain = reader.nextTrace();
+      if (chain == null) chain = new Chain(0);
+      chain.cartsToAngles();
+      return chain;
+    }
+    finally {
+      reader.close();
+    }
+  }
+
+  // reads the CA trace of every model, deriving their angles on all cores
+  public static List<Chain> readModels(File f) throws IOException {
+    List<Chain> models = new ArrayList<Chain>();
+    PdbReader reader = new PdbReader(f);
+    try {
+      Chain chain;
+      while ((chain = reader.nextTrace()) != null) {
+        models.add(chain);
+      }
+    }
+    finally {
+      reader.close();
+    }
+    DihedralUtility.carts2Angles(models);
+    return models;
+  }
+
+  // reads the coordinates and amino acids of the next model, or returns null
+  // at the end of the file. angles are left for the caller to derive
+  public Chain nextTrace() throws IOException {
+    count = 0;
+    boolean isModel = false;
+    boolean isChainDone = false;
+    byte chainId = 0;
+    while (!isEnd && readLine()) {
+      if (startsWith("ENDMDL")) {
+        if (isModel || count > 0) return getTrace();
+        continue;
+      }
+      if (startsWith("MODEL")) {
+        // a model left open by a missing ENDMDL ends here
+        if (count > 0) return getTrace();
+        isModel = true;
+        continue;
+      }
+      if (startsWith("END")) {
+        isEnd = true;
+        break;
+      }
+      if (startsWith("TER")) {
+        if (count > 0) isChainDone = true;
+        continue;
+      }
+      if (isChainDone || !startsWith("ATOM") || lineLength < 54 || !isAtomName('C', 'A')) continue;
+      byte altLoc = line[16];
+      if (altLoc != ' ' && altLoc != 'A') continue;
+      if (count == 0) {
+        chainId = line[21];
+      }
+      else if (line[21] != chainId) {
+        isChainDone = true;
+        continue;
+      }
+      if (!parseCoordinates()) {
+        throw new IOException("Bad coordinates in ATOM record " + (count + 1) + " of a model");
+      }
+      add(xyz[0], xyz[1], xyz[2], getResidue());
+    }
+    return count > 0 || isModel ? getTrace() : null;
+  }
+
+  private Chain getTrace() {
+    Chain chain = new Chain(count);
+    System.arraycopy(x, 0, chain.x, 0, count);
+    System.arraycopy(y, 0, chain.y, 0, count);
+    System.arraycopy(z, 0, chain.z, 0, count);
+    System.arraycopy(aa, 0, chain.aa, 0, count);
+    return chain;
+  }
+
+  private void add(double px, double py, double pz, char residue) {
+    if (count == x.length) {
+      int capacity = 2 * count;
+      x = Arrays.copyOf(x, capacity);
+      y = Arrays.copyOf(y, capacity);
+      z = Arrays.copyOf(z, capacity);
+      aa = Arrays.copyOf(aa, capacity);
+    }
+    x[count] = px;
+    y[count] = py;
+    z[count] = pz;
+    aa[count] = residue;
+    count++;
+  }
+
+  // copies the next line into line, returning false at the end of the stream
+  private boolean readLine() throws IOException {
+    lineLength = 0;
+    while (true) {
+      if (pos == limit) {
+        limit = in.read(buf, 0, buf.length);
+        pos = 0;
+        if (limit <= 0) {
+          limit = 0;
+          return lineLength > 0;
+        }
+      }
+      int start = pos;
+      while (pos < limit && buf[pos] != '\n') pos++;
+      int length = pos - start;
+      if (lineLength + length > line.length) {
+        line = Arrays.copyOf(line, Math.max(2 * line.length, lineLength + length));
+      }
+      System.arraycopy(buf, start, line, lineLength, length);
+      lineLength += length;
+      // a line split across two reads carries on into the next
+      if (pos < limit) {
+        pos++;
+        break;
+      }
+    }
+    if (lineLength > 0 && line[lineLength-1] == '\r') lineLength--;
+    return true;
+  }
+
+  private boolean startsWith(String record) {
+    if (lineLength < record.length()) return false;
+    for (int k = 0; k < record.length(); k++) {
+      if (line[k] != record.charAt(k)) return false;
+    }
+    return true;
+  }
+
+  // atom name, columns 13-16, is the two given letters once blanks are trimmed
+  private boolean isAtomName(char a, char b) {
+    int from = 12;
+    int to = 16;
+    while (from < to && line[from] == ' ') from++;
+    while (to > from && line[to-1] == ' ') to--;
+    return to - from == 2 && line[from] == a && line[from+1] == b;
+  }
+
+  // one letter code of the residue name in columns 18-20, X if unknown
+  private char getResidue() {
+    for (int k = 0; k < RESIDUES.length; k++) {
+      String name = RESIDUES[k];
+      if (line[17] == name.charAt(0) && line[18] == name.charAt(1) && line[19] == name.charAt(2)) {
+        return RESIDUE_CODES.charAt(k);
+      }
+    }
+    return 'X';
+  }
+
+  // reads x y z from their fixed columns, falling back to the last three
+  // fields before column 55 for files that are not column aligned
+  private boolean parseCoordinates() {
+    xyz[0] = parseDecimal(30, 38);
+    xyz[1] = parseDecimal(38, 46);
+    xyz[2] = parseDecimal(46, 54);
+    if (!Double.isNaN(xyz[0]) && !Double.isNaN(xyz[1]) && !Double.isNaN(xyz[2])) return true;
+    int end = 54;
+    for (int k = 2; k >= 0; k--) {
+      while (end > 0 && line[end-1] == ' ') end--;
+      int start = end;
+      while (start > 0 && line[start-1] != ' ') start--;
+      xyz[k] = parseDecimal(start, end);
+      if (Double.isNaN(xyz[k])) return false;
+      end = start;
+    }
+    return true;
+  }
+
+  // parses a plain decimal such as -12.345 between blanks in columns
+  // from..to-1, or returns NaN if there is anything else there
+  private double parseDecimal(int from, int to) {
+    while (from < to && line[from] == ' ') from++;
+    while (to > from && line[to-1] == ' ') to--;
+    boolean isNegative = false;
+    if (from < to && (line[from] == '-' || line[from] == '+')) {
+      isNegative = line[from] == '-';
+      from++;
+    }
+    long mantissa = 0;
+    int digits = 0;
+    int decimals = -1;
+    for (int k = from; k < to; k++) {
+      byte b = line[k];
+      if (b == '.' && decimals == -1) {
+        decimals = 0;
+        continue;
+      }
+      if (b < '0' || b > '9' || digits == 15) return Double.NaN;
+      mantissa = mantissa * 10 + (b - '0');
+      digits++;
+      if (decimals != -1) decimals++;
+    }
+    if (digits == 0) return Double.NaN;
+    double value = decimals > 0 ? mantissa / POWERS[decimals] : mantissa;
+    return isNegative ? -value : value;
+  }
+
+  private static final double[] POWERS = {
+    1e0, 1e1, 1e2, 1e3, 1e4, 1e5, 1e6, 1e7, 1e8, 1e9, 1e10, 1e11, 1e12, 1e13, 1e14, 1e15
+  };
+
+  // three letter residue names and their one letter codes, shared with PdbWriter
+  static final String[] RESIDUES = {
+    "ALA", "ARG", "ASN", "ASP", "ASX", "CYS", "GLU", "GLN", "GLX", "GLY", "HIS",
+    "ILE", "LEU", "LYS", "MET", "PHE", "PRO", "SER", "THR", "TRP", "TYR", "VAL"
+  };
+  static final String RESIDUE_CODES = "ARNDBCEQZGHILKMFPSTWYV";
+}
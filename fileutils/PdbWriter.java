@@ -0,0 +1,205 @@
+package fileutils;
+
+import dihedralutils.Chain;
+import dihedralutils.DihedralUtility;
+import java.io.*;
+import java.math.BigDecimal;
+import java.math.RoundingMode;
+
+// writes alpha carbon traces as fixed column .pdb records. numbers are
+// formatted straight into a reusable byte buffer that is flushed to the file
+// when full, so writing is bound by the disk rather than by formatting. each
+// chain is written as chain A, and several chains can be written as the
+// models of one trajectory
+public class PdbWriter {
+  // room for any one record, including its line break
+  private static final int RECORD_BYTES = 128;
+
+  private final OutputStream out;
+  private final byte[] buf = new byte[1 << 16];
+  private int pos;
+  private int models;
+
+  public PdbWriter(OutputStream out) {
+    this.out = out;
+  }
+
+  public PdbWriter(File f) throws IOException {
+    this(new FileOutputStream(f));
+  }
+
+  // writes the atoms of a chain followed by TER
+  public void writeChain(Chain chain) throws IOException {
+    for (int i = 0; i < chain.length; i++) {
+      writeAtom(i, chain.aa[i], chain.x[i], chain.y[i], chain.z[i]);
+    }
+    if (chain.length > 0) {
+      ensure(RECORD_BYTES);
+      putText("TER   ");
+      putInt(chain.length + 1, 5);
+      putText("      ");
+      putText(getResidueName(chain.aa[chain.length-1]));
+      putText(" A");
+      putInt(chain.length, 4);
+      putLineEnd();
+    }
+  }
+
+  // writes a chain as the next model of a trajectory
+  public void writeModel(Chain chain) throws IOException {
+    models++;
+    ensure(RECORD_BYTES);
+    putText("MODEL     ");
+    putInt(models, 4);
+    putLineEnd();
+    writeChain(chain);
+    ensure(RECORD_BYTES);
+    putText("ENDMDL");
+    putLineEnd();
+  }
+
+  // writes every state a chain went through as one model each, oldest first.
+  // the moves are those kept by the undo history - the node, the angle type
+  // ('p' planar or 'd' dihedral), the angle the node had before the move, and
+  // whether it was made in the same step as the move before it, in which case
+  // no model is written between them. the chain is wound back to before the
+  // first move and replayed, and is left as it was
+  public void writeTrajectory(Chain chain, int[] moveNode, byte[] moveType, double[] moveAngle, boolean[] moveJoined, int moves) throws IOException {
+    Chain frame = chain.copy();
+    // wind back, keeping the angle each move set so it can be replayed
+    double[] after = new double[moves];
+    for (int k = moves - 1; k >= 0; k--) {
+      double[] angles = moveType[k] == 'p' ? frame.theta : frame.tao;
+      after[k] = angles[moveNode[k]];
+      angles[moveNode[k]] = moveAngle[k];
+    }
+    frame.anglesToCarts();
+    writeModel(frame);
+    // first node moved by the step so far
+    int from = frame.length;
+    for (int k = 0; k < moves; k++) {
+      double[] angles = moveType[k] == 'p' ? frame.theta : frame.tao;
+      angles[moveNode[k]] = after[k];
+      from = Math.min(from, DihedralUtility.firstAffected(moveNode[k]));
+      if (k + 1 < moves && moveJoined[k+1]) continue;
+      frame.recomputeFrom(from);
+      writeModel(frame);
+      from = frame.length;
+    }
+  }
+
+  // writes END and closes the file
+  public void close() throws IOException {
+    try {
+      ensure(RECORD_BYTES);
+      putText("END");
+      putLineEnd();
+      flush();
+    }
+    finally {
+      out.close();
+    }
+  }
+
+  public void flush() throws IOException {
+    out.write(buf, 0, pos);
+    pos = 0;
+    out.flush();
+  }
+
+  // columns follow the PDB format - serial numbers past 99999 and residue
+  // numbers past 9999 wrap around so every record keeps its columns
+  private void writeAtom(int i, char aa, double x, double y, double z) throws IOException {
+    ensure(RECORD_BYTES);
+    putText("ATOM  ");
+    putInt((i + 1) % 100000, 5);
+    putText("  CA  ");
+    putText(getResidueName(aa));
+    putText(" A");
+    putInt((i + 1) % 10000, 4);
+    putText("    ");
+    putFixed(x);
+    putFixed(y);
+    putFixed(z);
+    putText("  1.00  0.00           C  ");
+    putLineEnd();
+  }
+
+  private void ensure(int bytes) throws IOException {
+    if (pos + bytes > buf.length) {
+      out.write(buf, 0, pos);
+      pos = 0;
+    }
+  }
+
+  private void putText(String s) {
+    for (int k = 0; k < s.length(); k++) {
+      buf[pos++] = (byte) s.charAt(k);
+    }
+  }
+
+  private void putLineEnd() {
+    buf[pos++] = '\n';
+  }
+
+  // right aligns a non negative integer in width columns
+  private void putInt(int value, int width) {
+    int end = pos + width;
+    int k = end;
+    do {
+      buf[--k] = (byte) ('0' + value % 10);
+      value /= 10;
+    } while (value > 0 && k > pos);
+    while (k > pos) buf[--k] = ' ';
+    pos = end;
+  }
+
+  // writes a coordinate as %8.3f would, except that values which round to
+  // zero lose their sign. values too large for the columns are written in
+  // full, as %8.3f does, rather than cut short
+  private void putFixed(double value) throws IOException {
+    if (Double.isNaN(value) || Double.isInfinite(value) || Math.abs(value) >= 1e15) {
+      String s = String.format("%8.3f", value);
+      ensure(s.length() + RECORD_BYTES);
+      putText(s);
+      return;
+    }
+    double scaled = Math.abs(value) * 1000.0;
+    long thousandths = Math.round(scaled);
+    // the product is rounded, so a value just under a half way point can land
+    // on it - settle those from the shortest decimal of the value as %8.3f does
+    if (Math.abs(scaled - Math.floor(scaled) - 0.5) < 1e-6) {
+      thousandths = BigDecimal.valueOf(Math.abs(value)).setScale(3, RoundingMode.HALF_UP).unscaledValue().longValue();
+    }
+    boolean isNegative = value < 0 && thousandths != 0;
+    // digits, the point and the sign of the number, at least 0.000
+    int digits = Math.max(4, countDigits(thousandths));
+    int length = digits + 1 + (isNegative ? 1 : 0);
+    for (int k = length; k < 8; k++) {
+      buf[pos++] = ' ';
+    }
+    if (isNegative) buf[pos++] = '-';
+    int end = pos + digits + 1;
+    int k = end;
+    for (int d = 0; d < digits; d++) {
+      if (d == 3) buf[--k] = '.';
+      buf[--k] = (byte) ('0' + thousandths % 10);
+      thousandths /= 10;
+    }
+    pos = end;
+  }
+
+  private static int countDigits(long value) {
+    int digits = 1;
+    while (value >= 10) {
+      value /= 10;
+      digits++;
+    }
+    return digits;
+  }
+
+  private static String getResidueName(char aa) {
+    int k = PdbReader.RESIDUE_CODES.indexOf(aa);
+    return k == -1 ? "UNK" : PdbReader.RESIDUES[k];
+  }
+}
@@ -0,0 +1,253 @@
+package fileutils;
+
+import contactutils.RestraintSet;
+import dihedralutils.Chain;
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.util.*;
+import java.util.zip.*;
+
+// a folding puzzle - the amino acid sequence (.aa), optional secondary
+// structure (.ss) and optional contact restraints (.rr). reads the same zip
+// bundles as the game without any of the ui
+public class Puzzle {
+  public String name;
+  public String sequence;
+  public String secondary;
+  public RestraintSet restraints;
+
+  // starting planar and dihedral angle in degrees for each secondary structure
+  private static final int DEFAULT_THETA = 110;
+  private static final int DEFAULT_TAO = -150;
+  private static final Map<Character, Integer> secondaryTheta = new HashMap<Character, Integer>();
+  private static final Map<Character, Integer> secondaryTao = new HashMap<Character, Integer>();
+  static {
+    secondaryTheta.put('H', 89);
+    secondaryTheta.put('E', 124);
+    secondaryTheta.put('C', 110);
+    secondaryTao.put('H', 50);
+    secondaryTao.put('E', -170);
+    secondaryTao.put('C', -150);
+  }
+
+  // reads a .zip bundle, or a .aa file with any .ss and .rr of the same name
+  // beside it
+  public static Puzzle read(File f) throws IOException {
+    String fileName = f.getName();
+    if (fileName.endsWith(".zip")) return readZip(f);
+    if (!fileName.endsWith(".aa")) {
+      throw new IOException("Expected a .zip or .aa file: " + f);
+    }
+    Puzzle p = new Puzzle();
+    String base = f.getPath().substring(0, f.getPath().length() - 3);
+    p.name = fileName.substring(0, fileName.length() - 3);
+    p.sequence = readFirstLine(f);
+    File ss = new File(base + ".ss");
+    if (ss.exists()) p.secondary = readFirstLine(ss);
+    File rr = new File(base + ".rr");
+    if (rr.exists()) p.restraints = RRParser.parse(rr, p.sequence.length());
+    return p;
+  }
+
+  // reads the .aa, .ss and .rr entries of a bundle straight into memory,
+  // without extracting anything to disk
+  public static Puzzle readZip(File f) throws IOException {
+    Puzzle p = new Puzzle();
+    ZipFile zip = new ZipFile(f);
+    try {
+      ZipEntry aa = null;
+      ZipEntry ss = null;
+      ZipEntry rr = null;
+      Enumeration<? extends ZipEntry> entries = zip.entries();
+      while (entries.hasMoreElements()) {
+        ZipEntry ze = entries.nextElement();
+        if (ze.isDirectory()) continue;
+        String entry = new File(ze.getName()).getName();
+        // skip the resource forks macOS adds to zips it makes, which share
+        // the names of the files they belong to
+        if (isMacMetadata(ze.getName())) continue;
+        if (entry.endsWith(".aa")) {
+          if (aa != null) throw new IOException("There is more than one .aa file in " + f);
+          aa = ze;
+        }
+        else if (entry.endsWith(".ss")) {
+          ss = ze;
+        }
+        else if (entry.endsWith(".rr")) {
+          rr = ze;
+        }
+      }
+      if (aa == null) throw new IOException("There is no .aa file in " + f);
+      String entry = new File(aa.getName()).getName();
+      p.name = entry.substring(0, entry.length() - 3);
+      p.sequence = readFirstLine(zip, aa);
+      if (ss != null) p.secondary = readFirstLine(zip, ss);
+      // the sequence length is needed to parse restraints, so they come last
+      if (rr != null) {
+        InputStream in = zip.getInputStream(rr);
+        try {
+          byte[] bytes = readAll(in, rr.getSize());
+          p.restraints = RRParser.parse(ByteBuffer.wrap(bytes), p.sequence.length());
+        }
+        finally {
+          in.close();
+        }
+      }
+    }
+    finally {
+      zip.close();
+    }
+    return p;
+  }
+
+  // true for entries under __MACOSX/ and AppleDouble files named ._*
+  private static boolean isMacMetadata(String path) {
+    return path.startsWith("__MACOSX/") || path.contains("/__MACOSX/")
+      || new File(path).getName().startsWith("._");
+  }
+
+  // builds the chain a new game starts from
+  public Chain initialChain() {
+    int n = sequence.length();
+    Chain chain = new Chain(n);
+    boolean hasSecondary = secondary != null && secondary.length() == n;
+    for (int i = 0; i < n; i++) {
+      chain.aa[i] = sequence.charAt(i);
+      char c = hasSecondary ? secondary.charAt(i) : 0;
+      if (hasSecondary) chain.ss[i] = c;
+      // first and last node have no theta
+      if (i == 0 || i == n-1) {
+        chain.theta[i] = 2 * Math.PI;
+      }
+      else {
+        chain.theta[i] = Math.toRadians(getOrDefault(secondaryTheta, c, DEFAULT_THETA));
+      }
+      // first, second to last, and last nodes have no tao
+      if (i == 0 || i == n-1 || i == n-2) {
+        chain.tao[i] = 2 * Math.PI;
+      }
+      else {
+        chain.tao[i] = Math.toRadians(getOrDefault(secondaryTao, c, DEFAULT_TAO));
+      }
+    }
+    chain.anglesToCarts();
+    return chain;
+  }
+
+  // reads a player's fold - either a .pdb CA trace or a text file with one
+  // "theta tao" line in radians per residue
+  public Chain readFold(File f) throws IOException {
+    int n = sequence.length();
+    Chain chain;
+    if (f.getName().endsWith(".pdb")) {
+      chain = PdbReader.readCA(f);
+      if (chain.length != n) {
+        throw new IOException("Expected " + n + " CA atoms but found " + chain.length);
+      }
+    }
+    else {
+      chain = new Chain(n);
+      BufferedReader br = new BufferedReader(new FileReader(f));
+      try {
+        int i = 0;
+        while (true) {
+          String line = br.readLine();
+          if (line == null) break;
+          StringTokenizer st = new StringTokenizer(line);
+          if (!st.hasMoreTokens() || line.trim().startsWith("#")) continue;
+          if (i == n) throw new IOException("More than " + n + " angle lines");
+          chain.theta[i] = Double.parseDouble(st.nextToken());
+          chain.tao[i] = Double.parseDouble(st.nextToken());
+          i++;
+        }
+        if (i != n) throw new IOException("Expected " + n + " angle lines but found " + i);
+      }
+      finally {
+        br.close();
+      }
+      chain.anglesToCarts();
+    }
+    setResidues(chain);
+    return chain;
+  }
+
+  // reads every fold in a file - each model of a .pdb trajectory, or the one
+  // fold of an angle file
+  public List<Chain> readFolds(File f) throws IOException {
+    if (!f.getName().endsWith(".pdb")) return Collections.singletonList(readFold(f));
+    List<Chain> models = PdbReader.readModels(f);
+    if (models.isEmpty()) throw new IOException("There are no models in " + f);
+    for (int m = 0; m < models.size(); m++) {
+      Chain chain = models.get(m);
+      if (chain.length != sequence.length()) {
+        throw new IOException("Expected " + sequence.length() + " CA atoms but found " + chain.length + " in model " + (m + 1));
+      }
+      setResidues(chain);
+    }
+    return models;
+  }
+
+  private void setResidues(Chain chain) {
+    int n = sequence.length();
+    boolean hasSecondary = secondary != null && secondary.length() == n;
+    for (int i = 0; i < n; i++) {
+      chain.aa[i] = sequence.charAt(i);
+      if (hasSecondary) chain.ss[i] = secondary.charAt(i);
+    }
+  }
+
+  private static int getOrDefault(Map<Character, Integer> map, char c, int fallback) {
+    Integer value = map.get(c);
+    return value == null ? fallback : value;
+  }
+
+  private static String readFirstLine(File f) throws IOException {
+    InputStream in = new BufferedInputStream(new FileInputStream(f));
+    try {
+      return readFirstLine(in);
+    }
+    finally {
+      in.close();
+    }
+  }
+
+  private static String readFirstLine(ZipFile zip, ZipEntry ze) throws IOException {
+    InputStream in = new BufferedInputStream(zip.getInputStream(ze));
+    try {
+      return readFirstLine(in);
+    }
+    finally {
+      in.close();
+    }
+  }
+
+  private static String readFirstLine(InputStream in) throws IOException {
+    StringBuilder sb = new StringBuilder();
+    int b;
+    while ((b = in.read()) != -1 && b != '\n') {
+      sb.append((char) b);
+    }
+    return sb.toString().trim();
+  }
+
+  // reads a whole stream, sized up front when the length is known
+  private static byte[] readAll(InputStream in, long size) throws IOException {
+    if (size < 0 || size > Integer.MAX_VALUE - 8) {
+      ByteArrayOutputStream out = new ByteArrayOutputStream();
+      byte[] buffer = new byte[8192];
+      int len;
+      while ((len = in.read(buffer)) > 0) {
+        out.write(buffer, 0, len);
+      }
+      return out.toByteArray();
+    }
+    byte[] bytes = new byte[(int) size];
+    int n = 0;
+    while (n < bytes.length) {
+      int len = in.read(bytes, n, bytes.length - n);
+      if (len < 0) break;
+      n += len;
+    }
+    return n == bytes.length ? bytes : Arrays.copyOf(bytes, n);
+  }
+}
@@ -0,0 +1,167 @@
+package fileutils;
+
+import contactutils.RestraintSet;
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+
+// streaming parser for .rr restraint files. numbers are parsed straight from
+// the bytes of a memory mapped file or an in memory buffer into the restraint
+// arrays, so no strings are created per line. a restraint line is
+//   i j dmin dmax distance
+// with one indexed residues - the game scores against the fifth field. any
+// other line, such as a CASP header (PFRMAT, TARGET, MODEL, END), a sequence
+// line or a # comment, is skipped
+public class RRParser {
+  private final ByteBuffer buf;
+  private int pos;
+  private final int end;
+  // set by readNumber when the text at the cursor was not a number
+  private boolean isBadNumber;
+
+  private RRParser(ByteBuffer buf) {
+    this.buf = buf;
+    this.pos = buf.position();
+    this.end = buf.limit();
+  }
+
+  public static RestraintSet parse(File f, int residues) throws IOException {
+    FileInputStream in = new FileInputStream(f);
+    try {
+      FileChannel channel = in.getChannel();
+      ByteBuffer buf = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+      return parse(buf, residues);
+    }
+    finally {
+      in.close();
+    }
+  }
+
+  public static RestraintSet parse(ByteBuffer buf, int residues) {
+    return new RRParser(buf).parse(residues);
+  }
+
+  private RestraintSet parse(int residues) {
+    RestraintSet restraints = new RestraintSet(residues);
+    while (pos < end) {
+      skipBlanks();
+      if (pos < end && isDigit(buf.get(pos))) {
+        double i = readNumber();
+        double j = readNumber();
+        readNumber();
+        readNumber();
+        double dist = readNumber();
+        if (!isBadNumber && i == (int) i && j == (int) j) {
+          restraints.add((int) i - 1, (int) j - 1, dist);
+        }
+      }
+      skipLine();
+    }
+    restraints.sort();
+    return restraints;
+  }
+
+  private static boolean isDigit(byte b) {
+    return b >= '0' && b <= '9';
+  }
+
+  private void skipBlanks() {
+    while (pos < end) {
+      byte b = buf.get(pos);
+      if (b != ' ' && b != '\t' && b != '\r') break;
+      pos++;
+    }
+  }
+
+  private void skipLine() {
+    while (pos < end && buf.get(pos) != '\n') pos++;
+    pos++;
+    isBadNumber = false;
+  }
+
+  // reads a decimal such as 12, -3.5 or 1.2e-3 at the cursor and moves past
+  // it. flags isBadNumber if there is none before the end of the line
+  private double readNumber() {
+    skipBlanks();
+    int start = pos;
+    boolean isNegative = false;
+    if (pos < end && (buf.get(pos) == '-' || buf.get(pos) == '+')) {
+      isNegative = buf.get(pos) == '-';
+      pos++;
+    }
+    long mantissa = 0;
+    int digits = 0;
+    int scale = 0;
+    while (pos < end && isDigit(buf.get(pos))) {
+      if (digits < 18) {
+        mantissa = mantissa * 10 + (buf.get(pos) - '0');
+        digits++;
+      }
+      else {
+        scale++;
+      }
+      pos++;
+    }
+    if (pos < end && buf.get(pos) == '.') {
+      pos++;
+      while (pos < end && isDigit(buf.get(pos))) {
+        if (digits < 18) {
+          mantissa = mantissa * 10 + (buf.get(pos) - '0');
+          digits++;
+          scale--;
+        }
+        pos++;
+      }
+    }
+    if (pos < end && (buf.get(pos) == 'e' || buf.get(pos) == 'E')) {
+      pos++;
+      boolean isNegativeExp = false;
+      if (pos < end && (buf.get(pos) == '-' || buf.get(pos) == '+')) {
+        isNegativeExp = buf.get(pos) == '-';
+        pos++;
+      }
+      int exp = 0;
+      while (pos < end && isDigit(buf.get(pos))) {
+        exp = Math.min(exp * 10 + (buf.get(pos) - '0'), 1000);
+        pos++;
+      }
+      scale += isNegativeExp ? -exp : exp;
+    }
+    // anything else glued to the number makes the line malformed
+    if (digits == 0 || (pos < end && !isBlank(buf.get(pos)))) {
+      isBadNumber = true;
+      while (pos < end && !isBlank(buf.get(pos))) pos++;
+      return 0.0;
+    }
+    // long mantissas are not exact in a double, so leave them to the jdk
+    if (digits > 15 || scale < -22 || scale > 22) {
+      byte[] text = new byte[pos - start];
+      for (int k = 0; k < text.length; k++) {
+        text[k] = buf.get(start + k);
+      }
+      return Double.parseDouble(new String(text, StandardCharsets.US_ASCII));
+    }
+    double value = scale(mantissa, scale);
+    return isNegative ? -value : value;
+  }
+
+  private static boolean isBlank(byte b) {
+    return b == ' ' || b == '\t' || b == '\r' || b == '\n';
+  }
+
+  // mantissa * 10^scale - both are exact doubles here, so a single division
+  // or multiplication by a power of ten is correctly rounded
+  private static double scale(long mantissa, int scale) {
+    if (scale < 0) return mantissa / POWERS[-scale];
+    return mantissa * POWERS[scale];
+  }
+
+  private static final double[] POWERS = new double[23];
+  static {
+    POWERS[0] = 1.0;
+    for (int k = 1; k < POWERS.length; k++) {
+      POWERS[k] = POWERS[k-1] * 10.0;
+    }
+  }
+}
@@ -0,0 +1,271 @@
+package fileutils;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+
+// a game in progress saved as a binary .pfs file so it can be resumed without
+// rebuilding it from the puzzle text. the layout, all big endian, is
+//   int magic "PFSS", int version
+//   string name, string puzzle path, string sequence, string secondary
+//   int restraint count, double restraint total
+//   int residues, double[residues] theta, double[residues] tao
+//   int undo count, int redo count, then that many moves of
+//     int node, byte angle type ('p' planar or 'd' dihedral), double angle
+//     before an undo move or after a redo move
+// with the angle type in upper case from version 2 on for a move made in the
+// same step as the move before it, as when a whole fold was put in place.
+// a string is an int byte length, -1 for none, and its utf-8 bytes. the
+// restraints are not stored - the puzzle path refers to the bundle they come
+// from and the count and total check it has not changed since. the angles and
+// moves sit at fixed offsets behind the header, so saving the same session
+// again only rewrites the angles that changed and the history
+public class SessionFile {
+  public static final int MAGIC = 0x50465353;
+  public static final int VERSION = 2;
+  private static final int MOVE_BYTES = 13;
+
+  public String name;
+  public String puzzlePath;
+  public String sequence;
+  public String secondary;
+  public int restraintCount;
+  public double restraintTotal;
+  public double[] theta;
+  public double[] tao;
+  // undo history followed by the redo stack, each oldest first
+  public int undoCount;
+  public int redoCount;
+  public int[] moveNode = new int[16];
+  public byte[] moveType = new byte[16];
+  public double[] moveAngle = new double[16];
+  // true for a move made in the same step as the move before it
+  public boolean[] moveJoined = new boolean[16];
+
+  // where this session was last written or read, and what it held then
+  private File file;
+  private byte[] header;
+  private long anglesOffset;
+  private double[] savedTheta;
+  private double[] savedTao;
+
+  public int getMoveCount() {
+    return undoCount + redoCount;
+  }
+
+  // clears the history so it can be refilled with addMove
+  public void clearMoves() {
+    undoCount = 0;
+    redoCount = 0;
+  }
+
+  // adds a move to the end of the undo history, or of the redo stack once
+  // isRedo has been passed
+  public void addMove(int node, char type, double angle, boolean isRedo) {
+    addMove(node, type, angle, isRedo, false);
+  }
+
+  public void addMove(int node, char type, double angle, boolean isRedo, boolean isJoined) {
+    int k = getMoveCount();
+    if (!isRedo && redoCount > 0) {
+      throw new IllegalStateException("Undo moves must be added before redo moves");
+    }
+    if (k == moveNode.length) {
+      int capacity = 2 * k;
+      moveNode = Arrays.copyOf(moveNode, capacity);
+      moveType = Arrays.copyOf(moveType, capacity);
+      moveAngle = Arrays.copyOf(moveAngle, capacity);
+      moveJoined = Arrays.copyOf(moveJoined, capacity);
+    }
+    moveNode[k] = node;
+    moveType[k] = (byte) type;
+    moveAngle[k] = angle;
+    moveJoined[k] = isJoined;
+    if (isRedo) redoCount++;
+    else undoCount++;
+  }
+
+  public static SessionFile read(File f) throws IOException {
+    FileInputStream in = new FileInputStream(f);
+    try {
+      // read onto the heap rather than mapped, as autosave rewrites and
+      // truncates this file while a mapping could still be live, which
+      // fails on windows
+      FileChannel channel = in.getChannel();
+      long size = channel.size();
+      if (size > Integer.MAX_VALUE) throw new IOException("Session file is too large: " + f);
+      ByteBuffer buf = ByteBuffer.allocate((int) size);
+      while (buf.hasRemaining() && channel.read(buf) != -1);
+      buf.flip();
+      SessionFile s = new SessionFile();
+      s.read(buf);
+      s.file = f;
+      return s;
+    }
+    catch (RuntimeException e) {
+      // a truncated or corrupt file runs off the end of the buffer
+      throw new IOException("Corrupt session file " + f + ": " + e, e);
+    }
+    finally {
+      in.close();
+    }
+  }
+
+  private void read(ByteBuffer buf) throws IOException {
+    if (buf.getInt() != MAGIC) throw new IOException("Not a session file");
+    int version = buf.getInt();
+    if (version < 1 || version > VERSION) {
+      throw new IOException("Unsupported session version " + version);
+    }
+    name = getString(buf);
+    puzzlePath = getString(buf);
+    sequence = getString(buf);
+    secondary = getString(buf);
+    restraintCount = buf.getInt();
+    restraintTotal = buf.getDouble();
+    int n = buf.getInt();
+    if (sequence == null || sequence.length() != n) {
+      throw new IOException("Session has " + n + " residues but its sequence does not match");
+    }
+    anglesOffset = buf.position();
+    header = new byte[(int) anglesOffset];
+    ByteBuffer start = buf.duplicate();
+    start.position(0);
+    start.get(header);
+    theta = new double[n];
+    tao = new double[n];
+    buf.asDoubleBuffer().get(theta);
+    buf.position(buf.position() + 8 * n);
+    buf.asDoubleBuffer().get(tao);
+    buf.position(buf.position() + 8 * n);
+    int undo = buf.getInt();
+    int redo = buf.getInt();
+    if (undo < 0 || redo < 0 || (long) (undo + redo) * MOVE_BYTES > buf.remaining()) {
+      throw new IOException("Session history is truncated");
+    }
+    clearMoves();
+    for (int k = 0; k < undo + redo; k++) {
+      int node = buf.getInt();
+      char type = (char) buf.get();
+      boolean isJoined = version >= 2 && (type == 'P' || type == 'D');
+      if (isJoined) type = Character.toLowerCase(type);
+      if (node < 0 || node >= n || (type != 'p' && type != 'd')) {
+        throw new IOException("Session history is corrupt");
+      }
+      addMove(node, type, buf.getDouble(), k >= undo, isJoined);
+    }
+    savedTheta = theta.clone();
+    savedTao = tao.clone();
+  }
+
+  // writes the session to f. when f is the file this session was last read
+  // from or written to and the header is unchanged, only the angles that
+  // differ from then and the history are rewritten
+  public void write(File f) throws IOException {
+    byte[] h = getHeader();
+    boolean isUpdate = f.equals(file) && f.exists() && Arrays.equals(h, header)
+      && savedTheta != null && savedTheta.length == theta.length;
+    FileChannel channel = FileChannel.open(f.toPath(),
+      StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+    try {
+      int n = theta.length;
+      if (isUpdate) {
+        int from = 0;
+        while (from < n && theta[from] == savedTheta[from] && tao[from] == savedTao[from]) from++;
+        int to = n - 1;
+        while (to >= from && theta[to] == savedTheta[to] && tao[to] == savedTao[to]) to--;
+        if (from <= to) {
+          writeDoubles(channel, theta, from, to, anglesOffset);
+          writeDoubles(channel, tao, from, to, anglesOffset + 8L * n);
+        }
+      }
+      else {
+        anglesOffset = h.length;
+        ByteBuffer buf = ByteBuffer.allocate(h.length + 16 * n);
+        buf.put(h);
+        buf.asDoubleBuffer().put(theta);
+        buf.position(buf.position() + 8 * n);
+        buf.asDoubleBuffer().put(tao);
+        buf.position(buf.position() + 8 * n);
+        buf.flip();
+        writeFully(channel, buf, 0);
+      }
+      // the history follows the angles and is always rewritten
+      long historyOffset = anglesOffset + 16L * n;
+      ByteBuffer buf = ByteBuffer.allocate(8 + MOVE_BYTES * getMoveCount());
+      buf.putInt(undoCount);
+      buf.putInt(redoCount);
+      for (int k = 0; k < getMoveCount(); k++) {
+        buf.putInt(moveNode[k]);
+        buf.put(moveJoined[k] ? (byte) Character.toUpperCase(moveType[k]) : moveType[k]);
+        buf.putDouble(moveAngle[k]);
+      }
+      buf.flip();
+      writeFully(channel, buf, historyOffset);
+      long end = historyOffset + buf.limit();
+      if (channel.size() > end) channel.truncate(end);
+    }
+    finally {
+      channel.close();
+    }
+    file = f;
+    header = h;
+    savedTheta = theta.clone();
+    savedTao = tao.clone();
+  }
+
+  private byte[] getHeader() {
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    DataOutputStream out = new DataOutputStream(bytes);
+    try {
+      out.writeInt(MAGIC);
+      out.writeInt(VERSION);
+      putString(out, name);
+      putString(out, puzzlePath);
+      putString(out, sequence);
+      putString(out, secondary);
+      out.writeInt(restraintCount);
+      out.writeDouble(restraintTotal);
+      out.writeInt(theta.length);
+    }
+    catch (IOException e) {
+      // writing to memory cannot fail
+      throw new UncheckedIOException(e);
+    }
+    return bytes.toByteArray();
+  }
+
+  private static void writeDoubles(FileChannel channel, double[] values, int from, int to, long offset) throws IOException {
+    ByteBuffer buf = ByteBuffer.allocate(8 * (to - from + 1));
+    buf.asDoubleBuffer().put(values, from, to - from + 1);
+    writeFully(channel, buf, offset + 8L * from);
+  }
+
+  private static void writeFully(FileChannel channel, ByteBuffer buf, long offset) throws IOException {
+    while (buf.hasRemaining()) {
+      offset += channel.write(buf, offset);
+    }
+  }
+
+  private static void putString(DataOutputStream out, String s) throws IOException {
+    if (s == null) {
+      out.writeInt(-1);
+      return;
+    }
+    byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+    out.writeInt(bytes.length);
+    out.write(bytes);
+  }
+
+  private static String getString(ByteBuffer buf) throws IOException {
+    int length = buf.getInt();
+    if (length == -1) return null;
+    if (length < 0 || length > buf.remaining()) throw new IOException("Session string is truncated");
+    byte[] bytes = new byte[length];
+    buf.get(bytes);
+    return new String(bytes, StandardCharsets.UTF_8);
+  }
+}